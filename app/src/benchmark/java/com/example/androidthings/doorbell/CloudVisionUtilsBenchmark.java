@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.services.vision.v1.Vision;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Vision requests against a local stub server: the shared client, and a
+ * client built for every request as before. The JDK keeps connections alive per
+ * process rather than per client, so on a desktop JVM the difference is client
+ * construction; on the device a new client also pays a new TLS handshake.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+// Without TCP_NODELAY the stub's separate header and body writes wait on delayed ACKs
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class CloudVisionUtilsBenchmark {
+
+    private static final String RESPONSE = "{\"responses\":["
+            + "{\"labelAnnotations\":[{\"description\":\"Door\",\"score\":0.9}]}]}";
+
+    // Size of the Vision derivative of each still, in bytes
+    @Param({"16384"})
+    public int imageSize;
+
+    private HttpServer mServer;
+    private String mRootUrl;
+    private List<FrameBuffer> mFrames;
+
+    @Setup
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[4096];
+                while (in.read(buffer) >= 0) {
+                    // Drain the request
+                }
+                byte[] body = RESPONSE.getBytes(Charset.forName("UTF-8"));
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        mServer.start();
+        mRootUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/";
+        CloudVisionUtils.setTransport(new NetHttpTransport());
+        CloudVisionUtils.setRootUrl(mRootUrl);
+
+        FrameBuffer frame = new FrameBufferPool(imageSize, 1).acquire(imageSize);
+        new Random(7).nextBytes(frame.getData());
+        frame.setLength(imageSize);
+        mFrames = new ArrayList<>();
+        mFrames.add(frame);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mServer.stop(0);
+        CloudVisionUtils.setTransport(null);
+        CloudVisionUtils.setRootUrl(Vision.DEFAULT_ROOT_URL);
+    }
+
+    @Benchmark
+    public List<Map<String, Float>> sharedClient() throws IOException {
+        return CloudVisionUtils.annotateImages(mFrames);
+    }
+
+    @Benchmark
+    public List<Map<String, Float>> clientPerRequest() throws IOException {
+        // Setting the endpoint discards the shared client
+        CloudVisionUtils.setRootUrl(mRootUrl);
+        return CloudVisionUtils.annotateImages(mFrames);
+    }
+}
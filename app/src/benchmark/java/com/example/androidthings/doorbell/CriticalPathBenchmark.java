@@ -0,0 +1,196 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time from a spooled still to its event being fully stored, with
+ * Storage, the database and Vision stubbed by fixed latencies. {@code sequential}
+ * chains the stages as the app used to: upload, then annotate once the upload has
+ * succeeded, then write the annotations. {@code parallel} starts the upload, the
+ * timestamp write and annotation at once against the event's push key, and joins
+ * each result into the record as it arrives. Annotation runs on a
+ * {@link CloudWorkScheduler} as in the app; the database stub serializes writes on
+ * one thread like the Firebase client.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CriticalPathBenchmark {
+
+    private static final int FRAME_LENGTH = 40 * 1024;
+
+    @Param("150")
+    public long storageMs;
+
+    @Param("20")
+    public long databaseMs;
+
+    @Param("120")
+    public long visionMs;
+
+    private ExecutorService mStorage;
+    private ExecutorService mDatabase;
+    private CloudWorkScheduler mScheduler;
+    private ImageAnnotator mVision;
+    private FrameBuffer mFrame;
+
+    @Setup
+    public void setUp() {
+        mStorage = Executors.newSingleThreadExecutor();
+        mDatabase = Executors.newSingleThreadExecutor();
+        mScheduler = new CloudWorkScheduler(2, 4, CloudWorkScheduler.ShedPolicy.DROP_OLDEST);
+        mVision = new ImageAnnotator() {
+            @Override
+            public List<ImageAnnotations> annotate(List<FrameBuffer> frames) {
+                pause(visionMs);
+                Map<String, Float> scores = Collections.singletonMap("person", 0.9f);
+                return Collections.nCopies(frames.size(),
+                        new ImageAnnotations(getName(), scores));
+            }
+
+            @Override
+            public String getName() {
+                return "stub";
+            }
+        };
+        mFrame = new FrameBufferPool(FRAME_LENGTH, 1).acquire(FRAME_LENGTH);
+        mFrame.setLength(FRAME_LENGTH);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFrame.release();
+        mScheduler.shutdown();
+        mStorage.shutdownNow();
+        mDatabase.shutdownNow();
+    }
+
+    private static void pause(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Upload the still, then run {@code then}.
+     */
+    private void upload(final Runnable then) {
+        mStorage.execute(new Runnable() {
+            @Override
+            public void run() {
+                pause(storageMs);
+                then.run();
+            }
+        });
+    }
+
+    /**
+     * Write a field of the event, then count down {@code stored}.
+     */
+    private void write(final CountDownLatch stored) {
+        mDatabase.execute(new Runnable() {
+            @Override
+            public void run() {
+                pause(databaseMs);
+                stored.countDown();
+            }
+        });
+    }
+
+    /**
+     * Annotate the still on the cloud scheduler, then run {@code then}.
+     */
+    private void annotate(final Runnable then) {
+        mScheduler.submit(new CloudWorkScheduler.Task() {
+            @Override
+            public void run() {
+                try {
+                    mVision.annotate(Collections.singletonList(mFrame));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                then.run();
+            }
+        }, 0);
+    }
+
+    @Benchmark
+    public void sequential() throws InterruptedException {
+        // the timestamp, image URL and annotations
+        final CountDownLatch stored = new CountDownLatch(3);
+        write(stored);
+        upload(new Runnable() {
+            @Override
+            public void run() {
+                write(stored);
+                annotate(new Runnable() {
+                    @Override
+                    public void run() {
+                        write(stored);
+                    }
+                });
+            }
+        });
+        stored.await();
+    }
+
+    @Benchmark
+    public void parallel() throws InterruptedException {
+        // the same writes, with only the image URL waiting for the upload
+        final CountDownLatch stored = new CountDownLatch(3);
+        write(stored);
+        upload(new Runnable() {
+            @Override
+            public void run() {
+                write(stored);
+            }
+        });
+        annotate(new Runnable() {
+            @Override
+            public void run() {
+                write(stored);
+            }
+        });
+        stored.await();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays synthetic JPEG-sized payloads through the buffer lifecycle of a ring: the
+ * camera copy, a spool write, an annotation derivative and the uploader, with up to
+ * two rings in flight. Compares pooled buffers with a fresh array per consumer, as
+ * the image handoff used before; run with {@code -prof gc} to see allocation rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBufferPoolBenchmark {
+
+    private static final int CAPACITY = 128 * 1024;
+
+    private final int[] mLengths = new int[1024];
+    private byte[] mPayload;
+    private int mNext;
+
+    private FrameBufferPool mPool;
+    private FrameBuffer mInFlight;
+    private byte[] mInFlightArray;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mPayload = new byte[CAPACITY];
+        random.nextBytes(mPayload);
+        for (int i = 0; i < mLengths.length; i++) {
+            mLengths[i] = 20 * 1024 + random.nextInt(80 * 1024);
+        }
+        mPool = new FrameBufferPool(CAPACITY, 4);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mInFlight != null) {
+            mInFlight.release();
+            mInFlight = null;
+        }
+    }
+
+    private int nextLength() {
+        mNext = (mNext + 1) & (mLengths.length - 1);
+        return mLengths[mNext];
+    }
+
+    @Benchmark
+    public FrameBuffer pooledRing() {
+        int length = nextLength();
+        FrameBuffer frame = mPool.acquire(length);
+        System.arraycopy(mPayload, 0, frame.getData(), 0, length);
+        frame.setLength(length);
+
+        FrameBuffer upload = frame.retain();
+        FrameBuffer derivative = mPool.acquire(length / 4);
+        derivative.setLength(length / 4);
+        derivative.release();
+        frame.release();
+
+        // The previous ring's upload completes while this one is captured
+        if (mInFlight != null) {
+            mInFlight.release();
+        }
+        mInFlight = upload;
+        return upload;
+    }
+
+    @Benchmark
+    public byte[] allocatingRing() {
+        int length = nextLength();
+        byte[] frame = new byte[length];
+        System.arraycopy(mPayload, 0, frame, 0, length);
+
+        byte[] derivative = new byte[length / 4];
+        System.arraycopy(frame, 0, derivative, 0, derivative.length);
+
+        mInFlightArray = frame;
+        return mInFlightArray;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the archive with a day of stills at a typical size: a synced append, and
+ * lookups by key and by time against 2000 archived images.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageArchiveBenchmark {
+
+    private static final int IMAGES = 2000;
+    private static final int LENGTH = 24 * 1024;
+
+    private File mDir;
+    private ImageArchive mArchive;
+    private FrameBuffer mFrame;
+    // Keys and times of images in the newest half of the first day, which retention
+    // does not remove
+    private final String[] mTargetKeys = new String[1024];
+    private final long[] mTargetTimes = new long[1024];
+    private int mNext;
+    private long mAppended;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("archive").toFile();
+        // Retention keeps the archive at a day of stills while appends continue
+        mArchive = new ImageArchive(mDir, (long) IMAGES * LENGTH, 4L * 1024 * 1024, 256);
+        mFrame = new FrameBufferPool(LENGTH, 1).acquire(LENGTH);
+        Arrays.fill(mFrame.getData(), 0, LENGTH, (byte) 9);
+        mFrame.setLength(LENGTH);
+        for (mAppended = 0; mAppended < IMAGES; mAppended++) {
+            mArchive.append(key(mAppended), 1000L * mAppended, mFrame);
+        }
+
+        Random random = new Random(11);
+        for (int i = 0; i < mTargetKeys.length; i++) {
+            int target = IMAGES / 2 + random.nextInt(IMAGES / 2);
+            mTargetKeys[i] = key(target);
+            mTargetTimes[i] = 1000L * target;
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mArchive.close();
+        mFrame.release();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private static String key(long i) {
+        return String.format("-Lkey%08d", i);
+    }
+
+    private int nextTarget() {
+        mNext = (mNext + 1) & (mTargetKeys.length - 1);
+        return mNext;
+    }
+
+    @Benchmark
+    public ImageArchive.Entry append() throws IOException {
+        ImageArchive.Entry entry = mArchive.append(key(mAppended), 1000L * mAppended, mFrame);
+        mAppended++;
+        return entry;
+    }
+
+    @Benchmark
+    public ImageArchive.Entry findByKey() {
+        return mArchive.findByKey(mTargetKeys[nextTarget()]);
+    }
+
+    @Benchmark
+    public ImageArchive.Entry findByTimestamp() {
+        return mArchive.findByTimestamp(mTargetTimes[nextTarget()]);
+    }
+}
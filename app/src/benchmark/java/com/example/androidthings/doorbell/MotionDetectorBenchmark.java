@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-frame cost of motion detection on noisy preview-sized luma
+ * planes with an object moving across them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MotionDetectorBenchmark {
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final int VARIANTS = 8;
+
+    private final ByteBuffer[] mFrames = new ByteBuffer[VARIANTS];
+    private MotionDetector mDetector;
+    private long mTimeMs;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(5);
+        for (int i = 0; i < VARIANTS; i++) {
+            byte[] data = new byte[WIDTH * HEIGHT];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (byte) (60 + random.nextInt(8));
+            }
+            // a bright square moving to the right
+            for (int y = 20; y < 70; y++) {
+                for (int x = i * 12; x < i * 12 + 50; x++) {
+                    data[y * WIDTH + x] = (byte) 220;
+                }
+            }
+            mFrames[i] = ByteBuffer.wrap(data);
+        }
+        mDetector = new MotionDetector(16, 12, 20, 0.1f, 1000);
+    }
+
+    @Benchmark
+    public boolean processFrame() {
+        mTimeMs += 200;
+        ByteBuffer frame = mFrames[(int) (mTimeMs / 200) % VARIANTS];
+        return mDetector.process(frame, WIDTH, HEIGHT, WIDTH, 1, mTimeMs);
+    }
+}
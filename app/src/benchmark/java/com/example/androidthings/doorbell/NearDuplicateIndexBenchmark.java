@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures hashing a decoded 9x8 thumbnail and looking a hash up in a full index of
+ * the app's size, where every other lookup is a near-duplicate of an indexed still.
+ * Decoding the JPEG needs the platform and is not included.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NearDuplicateIndexBenchmark {
+
+    private static final int CAPACITY = 32;
+    private static final int THRESHOLD = 6;
+
+    private final int[] mPixels = new int[9 * 8];
+    private final int[] mLuma = new int[9 * 8];
+    private final long[] mIndexed = new long[CAPACITY];
+    private final long[] mQueries = new long[1024];
+    private NearDuplicateIndex mIndex;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(9);
+        for (int i = 0; i < mPixels.length; i++) {
+            mPixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+
+        mIndex = new NearDuplicateIndex(CAPACITY, THRESHOLD, Long.MAX_VALUE / 2);
+        for (int i = 0; i < CAPACITY; i++) {
+            mIndexed[i] = random.nextLong();
+            mIndex.check("k" + i, mIndexed[i], 0);
+        }
+        for (int i = 0; i < mQueries.length; i++) {
+            mQueries[i] = i % 2 == 0
+                    ? mIndexed[i % CAPACITY] ^ (1L << (i % 64))
+                    : random.nextLong();
+        }
+    }
+
+    @Benchmark
+    public long hash() {
+        NearDuplicateIndex.toLuma(mPixels, mLuma);
+        return NearDuplicateIndex.dHash(mLuma);
+    }
+
+    @Benchmark
+    public String lookup() {
+        mNext = (mNext + 1) & (mQueries.length - 1);
+        return mIndex.check("q", mQueries[mNext], 0);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the spool with stills of a typical JPEG size: a synced append followed by
+ * its acknowledgement, as for a ring uploaded straight away, and opening a spool with
+ * a backlog of unacknowledged events, as after a crash during an outage.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UploadSpoolBenchmark {
+
+    private static final int LENGTH = 40 * 1024;
+    private static final int BACKLOG = 200;
+
+    private File mDir;
+    private File mBacklogDir;
+    private FrameBuffer mFrame;
+    private UploadSpool mSpool;
+    private long mTimestamp;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("spool").toFile();
+        mBacklogDir = Files.createTempDirectory("spool-backlog").toFile();
+
+        mFrame = new FrameBufferPool(LENGTH, 1).acquire(LENGTH);
+        Arrays.fill(mFrame.getData(), 0, LENGTH, (byte) 7);
+        mFrame.setLength(LENGTH);
+
+        UploadSpool backlog = new UploadSpool(mBacklogDir);
+        for (int i = 0; i < BACKLOG; i++) {
+            backlog.append("key-" + i, i, mFrame);
+        }
+        backlog.close();
+    }
+
+    @Setup(Level.Iteration)
+    public void openSpool() throws IOException {
+        mSpool = new UploadSpool(mDir);
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeSpool() throws IOException {
+        mSpool.close();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFrame.release();
+        delete(mDir);
+        delete(mBacklogDir);
+    }
+
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public UploadSpool.Record appendAndComplete() throws IOException {
+        UploadSpool.Record record = mSpool.append("key-" + mTimestamp, mTimestamp++, mFrame);
+        mSpool.complete(record);
+        return record;
+    }
+
+    @Benchmark
+    public List<UploadSpool.Record> recoverBacklog() throws IOException {
+        UploadSpool spool = new UploadSpool(mBacklogDir);
+        List<UploadSpool.Record> pending = spool.getPending();
+        spool.close();
+        if (pending.size() != BACKLOG) {
+            throw new IllegalStateException("Recovered " + pending.size() + " events");
+        }
+        return pending;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Queue that coalesces pending images into a single annotation batch request.
+ * A batch is handed to the {@link CloudWorkScheduler} once it reaches the maximum
+ * size or when the oldest pending image has waited for the batching window,
+ * whichever comes first.
+ */
+public class AnnotationBatcher {
+    private static final String TAG = AnnotationBatcher.class.getSimpleName();
+
+    /**
+     * Receives the annotations for each image, on a cloud worker thread.
+     */
+    public interface Listener {
+        /**
+         * @param annotations the image's annotations and the annotator that produced
+         *                    them, or null if the annotator could not annotate it.
+         */
+        void onAnnotated(String key, ImageAnnotations annotations);
+
+        void onAnnotationFailed(String key, IOException e);
+
+        /**
+         * Called when the image's batch was shed by the scheduler under load.
+         */
+        void onAnnotationDropped(String key);
+    }
+
+    private static class PendingImage {
+        final String key;
+        final FrameBuffer frame;
+
+        PendingImage(String key, FrameBuffer frame) {
+            this.key = key;
+            this.frame = frame;
+        }
+    }
+
+    private final CloudWorkScheduler mScheduler;
+    private final Handler mTimerHandler = new Handler(Looper.getMainLooper());
+    private final ImageAnnotator mAnnotator;
+    private final VisionImagePreprocessor mPreprocessor;
+    private final int mMaxBatchSize;
+    private final long mWindowMs;
+    private final Listener mListener;
+
+    private final List<PendingImage> mPending = new ArrayList<>();
+
+    private final LatencyHistogram mBatchLatency = new LatencyHistogram("vision-batch");
+    private long mBatches;
+    private long mImages;
+
+    /**
+     * @param scheduler scheduler that executes batch requests.
+     * @param annotator annotator that processes each batch.
+     * @param preprocessor produces the Vision derivative of each image.
+     * @param maxBatchSize number of images that triggers an immediate request.
+     * @param windowMs maximum time an image waits for others to join its batch.
+     * @param listener receives the annotations for each image.
+     */
+    public AnnotationBatcher(CloudWorkScheduler scheduler, ImageAnnotator annotator,
+                             VisionImagePreprocessor preprocessor,
+                             int maxBatchSize, long windowMs, Listener listener) {
+        mScheduler = scheduler;
+        mAnnotator = annotator;
+        mPreprocessor = preprocessor;
+        mMaxBatchSize = maxBatchSize;
+        mWindowMs = windowMs;
+        mListener = listener;
+    }
+
+    /**
+     * Queue an image for annotation. The batcher holds its own reference to the
+     * frame until the request completes.
+     */
+    public void enqueue(String key, FrameBuffer frame) {
+        frame.retain();
+        int pending;
+        synchronized (mPending) {
+            mPending.add(new PendingImage(key, frame));
+            pending = mPending.size();
+        }
+
+        if (pending >= mMaxBatchSize) {
+            mTimerHandler.removeCallbacks(mDispatchRunnable);
+            dispatch();
+        } else if (pending == 1) {
+            mTimerHandler.postDelayed(mDispatchRunnable, mWindowMs);
+        }
+    }
+
+    private final Runnable mDispatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    /**
+     * Hand all pending images to the scheduler as one batch.
+     */
+    private void dispatch() {
+        final List<PendingImage> batch;
+        synchronized (mPending) {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<>(mPending);
+            mPending.clear();
+        }
+
+        mScheduler.submit(new CloudWorkScheduler.Task() {
+            @Override
+            public void run() {
+                sendBatch(batch);
+            }
+
+            @Override
+            public void onDropped() {
+                for (PendingImage image : batch) {
+                    image.frame.release();
+                    mListener.onAnnotationDropped(image.key);
+                }
+            }
+        }, 0);
+    }
+
+    private void sendBatch(List<PendingImage> batch) {
+        List<FrameBuffer> frames = new ArrayList<>(batch.size());
+        for (PendingImage image : batch) {
+            frames.add(mPreprocessor.process(image.frame));
+            image.frame.release();
+        }
+
+        Log.d(TAG, "sending batch of " + batch.size() + " images for annotation");
+        long start = SystemClock.elapsedRealtime();
+        try {
+            List<ImageAnnotations> results = mAnnotator.annotate(frames);
+            recordBatch(batch.size(), SystemClock.elapsedRealtime() - start);
+            for (int i = 0; i < batch.size(); i++) {
+                mListener.onAnnotated(batch.get(i).key,
+                        i < results.size() ? results.get(i) : null);
+            }
+        } catch (IOException e) {
+            for (PendingImage image : batch) {
+                mListener.onAnnotationFailed(image.key, e);
+            }
+        } finally {
+            for (FrameBuffer frame : frames) {
+                frame.release();
+            }
+        }
+    }
+
+    private synchronized void recordBatch(int size, long latencyMs) {
+        mBatches++;
+        mImages += size;
+        mBatchLatency.record(latencyMs);
+        Log.d(TAG, "batch of " + size + " annotated in " + latencyMs + "ms");
+    }
+
+    /**
+     * Return a summary of batch sizes and latency.
+     */
+    public synchronized String getMetricsSummary() {
+        return "AnnotationBatcher: batches=" + mBatches
+                + " images=" + mImages
+                + " meanBatchSize=" + (mBatches == 0 ? 0 : (float) mImages / mBatches)
+                + "\n" + mBatchLatency.summary()
+                + "\n" + mPreprocessor.getMetricsSummary();
+    }
+}
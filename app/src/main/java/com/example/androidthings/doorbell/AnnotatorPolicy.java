@@ -0,0 +1,226 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link ImageAnnotator} that prefers a remote annotator and falls back to a local one.
+ * The local annotator is used while the device is offline, for requests the remote
+ * annotator does not answer within the latency budget, and for a cool-down period
+ * after the remote annotator fails or times out.
+ */
+public class AnnotatorPolicy implements ImageAnnotator {
+    private static final String TAG = AnnotatorPolicy.class.getSimpleName();
+
+    // Remote requests in flight at once, counting those abandoned after the budget.
+    // Beyond this, requests go to the local annotator until one finishes.
+    private static final int MAX_REMOTE_REQUESTS = 4;
+    private static final long REMOTE_THREAD_KEEP_ALIVE_MS = 30000;
+
+    private final ImageAnnotator mRemote;
+    private final ImageAnnotator mLocal;
+    private final ConnectivityManager mConnectivityManager;
+    private final long mLatencyBudgetMs;
+    private final long mRetryIntervalMs;
+    private final ThreadPoolExecutor mRemoteExecutor;
+
+    // The remote annotator is skipped until this time.
+    private volatile long mRemoteRetryAtMs;
+
+    private final LatencyHistogram mRemoteLatency;
+    private final LatencyHistogram mLocalLatency;
+    private final AtomicInteger mTimeouts = new AtomicInteger();
+
+    /**
+     * @param remote preferred annotator, e.g. Cloud Vision.
+     * @param local annotator used when the remote one is unavailable or too slow.
+     * @param latencyBudgetMs remote requests are abandoned after this long.
+     * @param retryIntervalMs how long to stay on the fallback before retrying remote.
+     */
+    public AnnotatorPolicy(Context context, ImageAnnotator remote, ImageAnnotator local,
+                           long latencyBudgetMs, long retryIntervalMs) {
+        this((ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE),
+                remote, local, latencyBudgetMs, retryIntervalMs);
+    }
+
+    /**
+     * @param connectivityManager source of network state, or null to always try the
+     *                            remote annotator first.
+     */
+    AnnotatorPolicy(ConnectivityManager connectivityManager, ImageAnnotator remote,
+                    ImageAnnotator local, long latencyBudgetMs, long retryIntervalMs) {
+        mRemote = remote;
+        mLocal = local;
+        mConnectivityManager = connectivityManager;
+        mLatencyBudgetMs = latencyBudgetMs;
+        mRetryIntervalMs = retryIntervalMs;
+        mRemoteExecutor = new ThreadPoolExecutor(0, MAX_REMOTE_REQUESTS,
+                REMOTE_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>(), new RemoteThreadFactory());
+        mRemoteLatency = new LatencyHistogram("annotator-" + remote.getName());
+        mLocalLatency = new LatencyHistogram("annotator-" + local.getName());
+    }
+
+    @Override
+    public List<ImageAnnotations> annotate(List<FrameBuffer> frames) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        if (isConnected() && start >= mRemoteRetryAtMs) {
+            try {
+                List<ImageAnnotations> results = annotateRemotely(frames);
+                mRemoteLatency.record(SystemClock.elapsedRealtime() - start);
+                return results;
+            } catch (TimeoutException e) {
+                mTimeouts.incrementAndGet();
+                Log.w(TAG, mRemote.getName() + " did not answer within " + mLatencyBudgetMs
+                        + "ms, using " + mLocal.getName() + " for a while");
+                mRemoteRetryAtMs = SystemClock.elapsedRealtime() + mRetryIntervalMs;
+                start = SystemClock.elapsedRealtime();
+            } catch (IOException e) {
+                Log.w(TAG, mRemote.getName() + " failed, falling back to " + mLocal.getName(), e);
+                mRemoteRetryAtMs = SystemClock.elapsedRealtime() + mRetryIntervalMs;
+                start = SystemClock.elapsedRealtime();
+            }
+        }
+
+        List<ImageAnnotations> results = mLocal.annotate(frames);
+        mLocalLatency.record(SystemClock.elapsedRealtime() - start);
+        return results;
+    }
+
+    /**
+     * Run the remote annotator on its own thread, waiting at most the latency budget.
+     * An abandoned request keeps running until it completes, so it holds its own
+     * references to the frames.
+     */
+    private List<ImageAnnotations> annotateRemotely(List<FrameBuffer> frames)
+            throws IOException, TimeoutException {
+        final List<FrameBuffer> retained = new ArrayList<>(frames.size());
+        for (FrameBuffer frame : frames) {
+            retained.add(frame.retain());
+        }
+        Future<List<ImageAnnotations>> future;
+        try {
+            future = mRemoteExecutor.submit(new Callable<List<ImageAnnotations>>() {
+                @Override
+                public List<ImageAnnotations> call() throws IOException {
+                    try {
+                        return mRemote.annotate(retained);
+                    } finally {
+                        for (FrameBuffer frame : retained) {
+                            frame.release();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            for (FrameBuffer frame : retained) {
+                frame.release();
+            }
+            throw new TimeoutException("Too many remote requests in flight");
+        }
+
+        try {
+            return future.get(mLatencyBudgetMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw e;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + mRemote.getName());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "policy";
+    }
+
+    /**
+     * Return whether the next request would be sent to the remote annotator.
+     */
+    public boolean isRemoteAvailable() {
+        return isConnected() && SystemClock.elapsedRealtime() >= mRemoteRetryAtMs;
+    }
+
+    private boolean isConnected() {
+        if (mConnectivityManager == null) {
+            return true;
+        }
+        NetworkInfo network = mConnectivityManager.getActiveNetworkInfo();
+        return network != null && network.isConnected();
+    }
+
+    /**
+     * Stop waiting for remote requests still in flight.
+     */
+    public void shutdown() {
+        mRemoteExecutor.shutdownNow();
+    }
+
+    /**
+     * Return a summary of latency for each annotator and of remote timeouts.
+     */
+    public String getMetricsSummary() {
+        return mRemoteLatency.summary() + " timeouts=" + mTimeouts.get()
+                + "\n" + mLocalLatency.summary();
+    }
+
+    private static class RemoteThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "RemoteAnnotator-" + mCount.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link ImageAnnotator} that remembers the annotations of each image by the SHA-1
+ * of its content, so retries and identical images do not reach the delegate again.
+ * Only results from one named annotator are kept: placed in front of an
+ * {@link AnnotatorPolicy}, fallback labels are not cached and are replaced when the
+ * image is annotated again, while cached results are served even when offline.
+ *
+ * Entries live in memory up to a size budget, evicting the least recently used, and
+ * expire after a fixed time. If a directory is given, entries are also written there
+ * so they survive restarts.
+ */
+public class CachingAnnotator implements ImageAnnotator {
+    private static final String TAG = CachingAnnotator.class.getSimpleName();
+
+    // Rough heap cost of an entry and of each label in it, for the size budget.
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+    private static final int LABEL_OVERHEAD_BYTES = 64;
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * Cached annotations with the wall-clock time they were produced.
+     */
+    private static class Entry {
+        final ImageAnnotations annotations;
+        final long createdAtMs;
+        final int size;
+
+        Entry(ImageAnnotations annotations, long createdAtMs) {
+            this.annotations = annotations;
+            this.createdAtMs = createdAtMs;
+            int size = ENTRY_OVERHEAD_BYTES + 2 * annotations.getAnnotator().length();
+            for (String label : annotations.getScores().keySet()) {
+                size += LABEL_OVERHEAD_BYTES + 2 * label.length();
+            }
+            this.size = size;
+        }
+    }
+
+    private final ImageAnnotator mDelegate;
+    private final String mCachedAnnotator;
+    private final long mMaxBytes;
+    private final long mTtlMs;
+    private final File mDiskDir;
+    private final int mMaxDiskEntries;
+    // Number of entries in the disk tier, so it is only listed when over the limit.
+    private int mDiskEntries;
+
+    // Iterates from least to most recently used.
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mBytes;
+
+    private long mHits;
+    private long mDiskHits;
+    private long mMisses;
+    private long mEvictions;
+    private long mExpirations;
+
+    /**
+     * @param delegate annotator called for images not in the cache.
+     * @param cachedAnnotator name of the annotator whose results are cached.
+     * @param maxBytes approximate memory budget for cached annotations.
+     * @param ttlMs how long annotations stay valid.
+     * @param diskDir directory for the persistent tier, or null to keep memory only.
+     * @param maxDiskEntries number of entries kept on disk, oldest removed first.
+     */
+    public CachingAnnotator(ImageAnnotator delegate, String cachedAnnotator, long maxBytes,
+                            long ttlMs, File diskDir, int maxDiskEntries) {
+        mDelegate = delegate;
+        mCachedAnnotator = cachedAnnotator;
+        mMaxBytes = maxBytes;
+        mTtlMs = ttlMs;
+        mDiskDir = diskDir;
+        mMaxDiskEntries = maxDiskEntries;
+        if (diskDir != null && !diskDir.isDirectory() && !diskDir.mkdirs()) {
+            Log.w(TAG, "Unable to create annotation cache in " + diskDir);
+        }
+        mDiskEntries = countDiskEntries();
+    }
+
+    @Override
+    public List<ImageAnnotations> annotate(List<FrameBuffer> frames) throws IOException {
+        List<String> keys = new ArrayList<>(frames.size());
+        List<ImageAnnotations> results = new ArrayList<>(frames.size());
+        List<String> missingKeys = new ArrayList<>();
+        List<FrameBuffer> missingFrames = new ArrayList<>();
+        Map<String, Integer> missingIndex = new HashMap<>();
+        for (FrameBuffer frame : frames) {
+            String key = hash(frame);
+            keys.add(key);
+            ImageAnnotations cached = get(key);
+            results.add(cached);
+            if (cached == null && !missingIndex.containsKey(key)) {
+                missingIndex.put(key, missingKeys.size());
+                missingKeys.add(key);
+                missingFrames.add(frame);
+            }
+        }
+        if (missingFrames.isEmpty()) {
+            return results;
+        }
+
+        List<ImageAnnotations> fetched = mDelegate.annotate(missingFrames);
+        if (fetched.size() != missingFrames.size()) {
+            Log.w(TAG, mDelegate.getName() + " answered " + fetched.size() + " of "
+                    + missingFrames.size() + " images");
+        }
+        // images the delegate did not answer for are treated as failed
+        List<ImageAnnotations> answers = new ArrayList<>(missingKeys.size());
+        for (int i = 0; i < missingKeys.size(); i++) {
+            ImageAnnotations annotations = i < fetched.size() ? fetched.get(i) : null;
+            answers.add(annotations);
+            // an empty result may be a transient failure, so it is asked for again
+            if (annotations != null
+                    && mCachedAnnotator.equals(annotations.getAnnotator())
+                    && annotations.getScores() != null
+                    && !annotations.getScores().isEmpty()) {
+                put(missingKeys.get(i), annotations);
+            }
+        }
+        for (int i = 0; i < frames.size(); i++) {
+            if (results.get(i) == null) {
+                results.set(i, answers.get(missingIndex.get(keys.get(i))));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public String getName() {
+        return "cached-" + mDelegate.getName();
+    }
+
+    private synchronized ImageAnnotations get(String key) {
+        long now = System.currentTimeMillis();
+        Entry entry = mEntries.get(key);
+        if (entry != null && now - entry.createdAtMs > mTtlMs) {
+            remove(key);
+            entry = null;
+            mExpirations++;
+        }
+        if (entry != null) {
+            mHits++;
+            return entry.annotations;
+        }
+
+        entry = readFromDisk(key);
+        if (entry != null && now - entry.createdAtMs <= mTtlMs) {
+            mDiskHits++;
+            putInMemory(key, entry);
+            return entry.annotations;
+        }
+        mMisses++;
+        return null;
+    }
+
+    private synchronized void put(String key, ImageAnnotations annotations) {
+        Entry entry = new Entry(annotations, System.currentTimeMillis());
+        putInMemory(key, entry);
+        writeToDisk(key, entry);
+    }
+
+    private void putInMemory(String key, Entry entry) {
+        remove(key);
+        mEntries.put(key, entry);
+        mBytes += entry.size;
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            if (eldest.getValue() == entry) {
+                break;
+            }
+            mBytes -= eldest.getValue().size;
+            it.remove();
+            mEvictions++;
+        }
+    }
+
+    private void remove(String key) {
+        Entry removed = mEntries.remove(key);
+        if (removed != null) {
+            mBytes -= removed.size;
+        }
+    }
+
+    private Entry readFromDisk(String key) {
+        if (mDiskDir == null) {
+            return null;
+        }
+        File file = new File(mDiskDir, key);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                long createdAtMs = in.readLong();
+                String annotator = in.readUTF();
+                int count = in.readInt();
+                Map<String, Float> scores = new HashMap<>(count * 2);
+                for (int i = 0; i < count; i++) {
+                    scores.put(in.readUTF(), in.readFloat());
+                }
+                return new Entry(new ImageAnnotations(annotator, scores), createdAtMs);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable cache entry " + key, e);
+            if (file.delete()) {
+                mDiskEntries--;
+            }
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, Entry entry) {
+        if (mDiskDir == null) {
+            return;
+        }
+        File file = new File(mDiskDir, key);
+        boolean replacing = file.exists();
+        File tmp = new File(mDiskDir, key + TMP_SUFFIX);
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+            try {
+                out.writeLong(entry.createdAtMs);
+                out.writeUTF(entry.annotations.getAnnotator());
+                Map<String, Float> scores = entry.annotations.getScores();
+                out.writeInt(scores.size());
+                for (Map.Entry<String, Float> annotation : scores.entrySet()) {
+                    out.writeUTF(annotation.getKey());
+                    out.writeFloat(annotation.getValue());
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to persist cache entry " + key, e);
+            tmp.delete();
+            return;
+        }
+        if (!replacing && ++mDiskEntries > mMaxDiskEntries) {
+            trimDisk();
+        }
+    }
+
+    /**
+     * Delete the oldest files, leaving room for a quarter of the limit so the
+     * directory is not listed again on the next few writes.
+     */
+    private void trimDisk() {
+        File[] files = mDiskDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        int keep = mMaxDiskEntries - mMaxDiskEntries / 4;
+        int remaining = files.length;
+        for (int i = 0; i < files.length && remaining > keep; i++) {
+            if (files[i].delete()) {
+                remaining--;
+                mEvictions++;
+            }
+        }
+        mDiskEntries = remaining;
+    }
+
+    /**
+     * Count the disk tier's entries, removing files left by interrupted writes.
+     */
+    private int countDiskEntries() {
+        File[] files = mDiskDir == null ? null : mDiskDir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(TMP_SUFFIX)) {
+                file.delete();
+            } else {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String hash(FrameBuffer frame) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(frame.getData(), 0, frame.getLength());
+        StringBuilder sb = new StringBuilder(40);
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16))
+                    .append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Return hit, miss and eviction counts and the memory tier's size.
+     */
+    public synchronized String getMetricsSummary() {
+        return "CachingAnnotator(" + mDelegate.getName() + "): hits=" + mHits
+                + " diskHits=" + mDiskHits
+                + " misses=" + mMisses
+                + " evictions=" + mEvictions
+                + " expirations=" + mExpirations
+                + " entries=" + mEntries.size()
+                + " bytes=" + mBytes
+                + " diskEntries=" + mDiskEntries;
+    }
+}
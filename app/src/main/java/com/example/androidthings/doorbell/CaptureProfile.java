@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import android.util.Size;
+
+/**
+ * Still image size and JPEG quality used by {@link DoorbellCamera}.
+ */
+public class CaptureProfile {
+
+    public final String name;
+    public final int width;
+    public final int height;
+    public final int jpegQuality;
+
+    public CaptureProfile(String name, int width, int height, int jpegQuality) {
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.jpegQuality = jpegQuality;
+    }
+
+    /**
+     * Create a profile using the largest supported size that fits within the target,
+     * or the smallest supported size if none does.
+     *
+     * @param supportedSizes JPEG output sizes reported by the camera, or null to use
+     *                       the target as is.
+     */
+    public static CaptureProfile create(String name, int targetWidth, int targetHeight,
+                                        int jpegQuality, Size[] supportedSizes) {
+        if (supportedSizes == null || supportedSizes.length == 0) {
+            return new CaptureProfile(name, targetWidth, targetHeight, jpegQuality);
+        }
+        Size best = null;
+        Size smallest = supportedSizes[0];
+        for (Size size : supportedSizes) {
+            long area = (long) size.getWidth() * size.getHeight();
+            if (area < (long) smallest.getWidth() * smallest.getHeight()) {
+                smallest = size;
+            }
+            if (size.getWidth() <= targetWidth && size.getHeight() <= targetHeight
+                    && (best == null || area > (long) best.getWidth() * best.getHeight())) {
+                best = size;
+            }
+        }
+        if (best == null) {
+            best = smallest;
+        }
+        return new CaptureProfile(name, best.getWidth(), best.getHeight(), jpegQuality);
+    }
+
+    /**
+     * Return true if switching between the two profiles requires a new image reader.
+     */
+    public boolean hasSameSize(CaptureProfile other) {
+        return width == other.width && height == other.height;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + width + "x" + height + " q" + jpegQuality;
+    }
+}
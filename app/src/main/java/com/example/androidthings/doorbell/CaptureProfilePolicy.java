@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import java.util.List;
+
+/**
+ * Chooses a {@link CaptureProfile} from the upload backlog and the measured uplink
+ * throughput. Stills start at the baseline profile. They step up to the best profile
+ * only while the backlog is short and the uplink is fast enough, and step down to the
+ * smallest, lowest-quality profile when images pile up, so the backlog drains faster.
+ *
+ * Each step back has a lower threshold than the step it undoes, so a backlog or
+ * throughput hovering around one threshold does not flip the profile on every still.
+ * A policy instance keeps the current step and should be used from one thread.
+ */
+public class CaptureProfilePolicy {
+
+    private static final int ENHANCED = 0;
+    private static final int BASELINE = 1;
+
+    private final int mReducedBacklog;
+    private final int mMinimalBacklog;
+    private final long mStepUpBytesPerSecond;
+    private final long mStepDownBytesPerSecond;
+    private int mIndex = BASELINE;
+
+    /**
+     * @param reducedBacklog pending uploads at which the best profile is left, and below
+     *                       which the last profile is left.
+     * @param minimalBacklog pending uploads at which the last profile is used.
+     * @param stepUpBytesPerSecond uplink throughput needed to use the best profile.
+     * @param stepDownBytesPerSecond uplink throughput below which the best profile is
+     *                               left; no more than {@code stepUpBytesPerSecond}.
+     */
+    public CaptureProfilePolicy(int reducedBacklog, int minimalBacklog,
+                                long stepUpBytesPerSecond, long stepDownBytesPerSecond) {
+        mReducedBacklog = reducedBacklog;
+        mMinimalBacklog = minimalBacklog;
+        mStepUpBytesPerSecond = stepUpBytesPerSecond;
+        mStepDownBytesPerSecond = stepDownBytesPerSecond;
+    }
+
+    /**
+     * @param profiles available profiles, best quality first, then the baseline, then
+     *                 smaller ones.
+     * @param pendingUploads images spooled but not yet uploaded.
+     * @param uplinkBytesPerSecond recent upload throughput, or 0 if not yet measured.
+     */
+    public CaptureProfile choose(List<CaptureProfile> profiles, int pendingUploads,
+                                 long uplinkBytesPerSecond) {
+        int last = profiles.size() - 1;
+        if (pendingUploads >= mMinimalBacklog) {
+            mIndex = last;
+        } else if (mIndex == last && mIndex > BASELINE) {
+            if (pendingUploads < mReducedBacklog) {
+                mIndex = BASELINE;
+            }
+        } else if (mIndex == ENHANCED) {
+            if (pendingUploads >= mReducedBacklog
+                    || uplinkBytesPerSecond < mStepDownBytesPerSecond) {
+                mIndex = BASELINE;
+            }
+        } else if (pendingUploads < mReducedBacklog
+                && uplinkBytesPerSecond >= mStepUpBytesPerSecond) {
+            mIndex = ENHANCED;
+        }
+        return profiles.get(Math.max(0, Math.min(mIndex, last)));
+    }
+}
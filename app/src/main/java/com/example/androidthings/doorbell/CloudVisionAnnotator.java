@@ -0,0 +1,35 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * {@link ImageAnnotator} backed by the Google Cloud Vision API.
+ */
+public class CloudVisionAnnotator implements ImageAnnotator {
+
+    @Override
+    public List<ImageAnnotations> annotate(List<FrameBuffer> frames) throws IOException {
+        return ImageAnnotations.of(getName(), CloudVisionUtils.annotateImages(frames));
+    }
+
+    @Override
+    public String getName() {
+        return "cloud";
+    }
+}
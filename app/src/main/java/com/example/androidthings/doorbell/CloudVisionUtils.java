@@ -15,6 +15,7 @@
  */
 package com.example.androidthings.doorbell;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.google.api.client.extensions.android.http.AndroidHttp;
@@ -24,6 +25,7 @@ import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.vision.v1.Vision;
 import com.google.api.services.vision.v1.VisionRequestInitializer;
 import com.google.api.services.vision.v1.model.AnnotateImageRequest;
+import com.google.api.services.vision.v1.model.AnnotateImageResponse;
 import com.google.api.services.vision.v1.model.BatchAnnotateImagesRequest;
 import com.google.api.services.vision.v1.model.BatchAnnotateImagesResponse;
 import com.google.api.services.vision.v1.model.EntityAnnotation;
@@ -31,6 +33,10 @@ import com.google.api.services.vision.v1.model.Feature;
 import com.google.api.services.vision.v1.model.Image;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -45,6 +51,95 @@ public class CloudVisionUtils {
 
     private static final int MAX_LABEL_RESULTS = 10;
 
+    /**
+     * Shared Vision client. The underlying HttpURLConnection transport keeps
+     * connections alive between requests, so reusing the client avoids a new
+     * TLS handshake on every ring.
+     */
+    private static Vision sVision;
+
+    private static String sRootUrl = Vision.DEFAULT_ROOT_URL;
+
+    // Transport for new clients, or null for the platform default.
+    private static HttpTransport sTransport;
+
+    // Whether the next request is the first one made with the current client.
+    private static boolean sColdClient;
+
+    private static final LatencyHistogram sColdLatency = new LatencyHistogram("vision-cold");
+    private static final LatencyHistogram sWarmLatency = new LatencyHistogram("vision-warm");
+
+    /**
+     * Point the client at a different Vision endpoint, such as a local stub server.
+     * The shared client is rebuilt on the next request.
+     *
+     * @param rootUrl root URL ending with '/', e.g. "http://10.0.0.2:8080/".
+     */
+    public static synchronized void setRootUrl(String rootUrl) {
+        sRootUrl = rootUrl;
+        sVision = null;
+    }
+
+    /**
+     * Use the given HTTP transport instead of the platform default, e.g. a
+     * {@code NetHttpTransport} when measuring against a stub server off-device.
+     * The shared client is rebuilt on the next request.
+     */
+    public static synchronized void setTransport(HttpTransport transport) {
+        sTransport = transport;
+        sVision = null;
+    }
+
+    /**
+     * Return the shared Vision client, building it on first use.
+     */
+    private static synchronized Vision getVision() {
+        if (sVision == null) {
+            HttpTransport httpTransport = sTransport != null
+                    ? sTransport
+                    : AndroidHttp.newCompatibleTransport();
+            JsonFactory jsonFactory = GsonFactory.getDefaultInstance();
+            VisionRequestInitializer initializer =
+                    new VisionRequestInitializer(CLOUD_VISION_API_KEY);
+            sVision = new Vision.Builder(httpTransport, jsonFactory, null)
+                    .setRootUrl(sRootUrl)
+                    .setVisionRequestInitializer(initializer)
+                    .build();
+            sColdClient = true;
+        }
+        return sVision;
+    }
+
+    /**
+     * Return and clear the cold flag for the current client.
+     */
+    private static synchronized boolean takeColdClient() {
+        boolean cold = sColdClient;
+        sColdClient = false;
+        return cold;
+    }
+
+    /**
+     * Return a summary of request latency on a cold and warm client.
+     */
+    public static String getLatencySummary() {
+        return sColdLatency.summary() + "\n" + sWarmLatency.summary();
+    }
+
+    /**
+     * Return the latency of the first request made with each client.
+     */
+    static LatencyHistogram getColdLatency() {
+        return sColdLatency;
+    }
+
+    /**
+     * Return the latency of requests made with an already used client.
+     */
+    static LatencyHistogram getWarmLatency() {
+        return sWarmLatency;
+    }
+
     /**
      * Construct an annotated image request for the provided image to be executed
      * using the provided API interface.
@@ -53,18 +148,66 @@ public class CloudVisionUtils {
      * @return collection of annotation descriptions and scores.
      */
     public static Map<String, Float> annotateImage(byte[] imageBytes) throws IOException {
-        // Construct the Vision API instance
-        HttpTransport httpTransport = AndroidHttp.newCompatibleTransport();
-        JsonFactory jsonFactory = GsonFactory.getDefaultInstance();
-        VisionRequestInitializer initializer = new VisionRequestInitializer(CLOUD_VISION_API_KEY);
-        Vision vision = new Vision.Builder(httpTransport, jsonFactory, null)
-                .setVisionRequestInitializer(initializer)
-                .build();
-
-        // Create the image request
+        return annotateImage(imageBytes, imageBytes.length);
+    }
+
+    /**
+     * Construct an annotated image request for the first {@code length} bytes of
+     * the provided buffer, so pooled buffers can be sent without copying them.
+     *
+     * @param imageBytes image bytes in JPEG format.
+     * @param length number of valid bytes in the buffer.
+     * @return collection of annotation descriptions and scores.
+     */
+    public static Map<String, Float> annotateImage(byte[] imageBytes, int length)
+            throws IOException {
+        BatchAnnotateImagesResponse response =
+                executeBatch(Collections.singletonList(createImageRequest(imageBytes, length)));
+        AnnotateImageResponse imageResponse = response.getResponses().get(0);
+        if (imageResponse.getError() != null) {
+            throw new IOException("Cloud Vision failed: " + imageResponse.getError().getMessage());
+        }
+        return convertResponseToMap(imageResponse);
+    }
+
+    /**
+     * Annotate several images with a single batch request.
+     *
+     * @param frames image buffers in JPEG format.
+     * @return annotations for each image, in the same order as the input, or null for
+     *         images the API reported an error for.
+     */
+    public static List<Map<String, Float>> annotateImages(List<FrameBuffer> frames)
+            throws IOException {
+        List<AnnotateImageRequest> requests = new ArrayList<>(frames.size());
+        for (FrameBuffer frame : frames) {
+            requests.add(createImageRequest(frame.getData(), frame.getLength()));
+        }
+
+        BatchAnnotateImagesResponse response = executeBatch(requests);
+        List<Map<String, Float>> results = new ArrayList<>(frames.size());
+        for (AnnotateImageResponse imageResponse : response.getResponses()) {
+            // One image failing does not fail the rest of its batch
+            if (imageResponse.getError() != null) {
+                Log.w(TAG, "Cloud Vision failed for an image: "
+                        + imageResponse.getError().getMessage());
+                results.add(null);
+            } else {
+                results.add(convertResponseToMap(imageResponse));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Create a label detection request for a single image.
+     */
+    private static AnnotateImageRequest createImageRequest(byte[] imageBytes, int length) {
         AnnotateImageRequest imageRequest = new AnnotateImageRequest();
         Image img = new Image();
-        img.encodeContent(imageBytes);
+        // The JDK encoder also runs in local tests, where android.util.Base64 is a stub
+        ByteBuffer content = Base64.getEncoder().encode(ByteBuffer.wrap(imageBytes, 0, length));
+        img.setContent(new String(content.array(), 0, content.limit(), StandardCharsets.US_ASCII));
         imageRequest.setImage(img);
 
         // Add the features we want
@@ -72,17 +215,27 @@ public class CloudVisionUtils {
         labelDetection.setType(LABEL_DETECTION);
         labelDetection.setMaxResults(MAX_LABEL_RESULTS);
         imageRequest.setFeatures(Collections.singletonList(labelDetection));
+        return imageRequest;
+    }
+
+    /**
+     * Batch and execute the requests using the shared Vision client.
+     */
+    private static BatchAnnotateImagesResponse executeBatch(List<AnnotateImageRequest> requests)
+            throws IOException {
+        Vision vision = getVision();
+        boolean cold = takeColdClient();
 
-        // Batch and execute the request
         BatchAnnotateImagesRequest requestBatch = new BatchAnnotateImagesRequest();
-        requestBatch.setRequests(Collections.singletonList(imageRequest));
+        requestBatch.setRequests(requests);
+        long start = SystemClock.elapsedRealtime();
         BatchAnnotateImagesResponse response = vision.images()
                 .annotate(requestBatch)
                 // Due to a bug: requests to Vision API containing large images fail when GZipped.
                 .setDisableGZipContent(true)
                 .execute();
-
-        return convertResponseToMap(response);
+        (cold ? sColdLatency : sWarmLatency).record(SystemClock.elapsedRealtime() - start);
+        return response;
     }
 
     /**
@@ -91,11 +244,11 @@ public class CloudVisionUtils {
      *
      * @return collection of annotation descriptions and scores.
      */
-    private static Map<String, Float> convertResponseToMap(BatchAnnotateImagesResponse response) {
+    private static Map<String, Float> convertResponseToMap(AnnotateImageResponse response) {
 
         // Convert response into a readable collection of annotations
         Map<String, Float> annotations = new HashMap<>();
-        List<EntityAnnotation> labels = response.getResponses().get(0).getLabelAnnotations();
+        List<EntityAnnotation> labels = response.getLabelAnnotations();
         if (labels != null) {
             for (EntityAnnotation label : labels) {
                 annotations.put(label.getDescription(), label.getScore());
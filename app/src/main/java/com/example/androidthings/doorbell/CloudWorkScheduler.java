@@ -0,0 +1,198 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs cloud work on a small pool of background threads with a bounded queue.
+ * Queued tasks run highest priority first and, within a priority, newest first, so
+ * the latest ring is not stuck behind a stale backlog. When the queue is full the
+ * {@link ShedPolicy} decides which task is dropped.
+ */
+public class CloudWorkScheduler {
+    private static final String TAG = CloudWorkScheduler.class.getSimpleName();
+
+    /**
+     * What to do when a task is submitted to a full queue.
+     */
+    public enum ShedPolicy {
+        /** Drop the queued task that would run last to make room. */
+        DROP_OLDEST,
+        /** Drop the submitted task. */
+        REJECT_NEWEST
+    }
+
+    /**
+     * Unit of cloud work.
+     */
+    public abstract static class Task implements Runnable {
+        /**
+         * Called instead of {@link #run()} if the task is shed.
+         */
+        public void onDropped() {
+        }
+    }
+
+    private final class QueuedTask implements Runnable, Comparable<QueuedTask> {
+        final Task task;
+        final int priority;
+        final long sequence;
+        final long enqueuedMs;
+
+        QueuedTask(Task task, int priority, long sequence) {
+            this.task = task;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.enqueuedMs = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void run() {
+            mWaitTime.record(SystemClock.elapsedRealtime() - enqueuedMs);
+            task.run();
+        }
+
+        @Override
+        public int compareTo(QueuedTask other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return sequence > other.sequence ? -1 : (sequence < other.sequence ? 1 : 0);
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final PriorityBlockingQueue<Runnable> mQueue;
+    private final int mQueueCapacity;
+    private final ShedPolicy mShedPolicy;
+
+    private long mSequence;
+    private long mSubmitted;
+    private long mDropped;
+    private int mMaxQueueDepth;
+    private final LatencyHistogram mWaitTime = new LatencyHistogram("cloud-queue-wait");
+
+    /**
+     * @param workers number of threads running tasks.
+     * @param queueCapacity number of tasks that may wait for a worker.
+     * @param shedPolicy policy applied when the queue is full.
+     */
+    public CloudWorkScheduler(int workers, int queueCapacity, ShedPolicy shedPolicy) {
+        mQueueCapacity = queueCapacity;
+        mShedPolicy = shedPolicy;
+        mQueue = new PriorityBlockingQueue<>(queueCapacity + 1);
+        mExecutor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                mQueue, new WorkerThreadFactory());
+    }
+
+    /**
+     * Queue a task, shedding work if the queue is full.
+     *
+     * @param priority tasks with a higher priority run first.
+     * @return false if the submitted task itself was dropped.
+     */
+    public boolean submit(Task task, int priority) {
+        QueuedTask shed = null;
+        synchronized (this) {
+            mSubmitted++;
+            if (mQueue.size() >= mQueueCapacity) {
+                mDropped++;
+                if (mShedPolicy == ShedPolicy.REJECT_NEWEST) {
+                    shed = new QueuedTask(task, priority, mSequence++);
+                } else {
+                    shed = removeLast();
+                }
+            }
+            if (shed == null || shed.task != task) {
+                mExecutor.execute(new QueuedTask(task, priority, mSequence++));
+                mMaxQueueDepth = Math.max(mMaxQueueDepth, mQueue.size());
+            }
+        }
+
+        if (shed != null) {
+            Log.w(TAG, "Cloud queue full, dropping task");
+            shed.task.onDropped();
+            return shed.task != task;
+        }
+        return true;
+    }
+
+    /**
+     * Remove the queued task that would run last.
+     */
+    private QueuedTask removeLast() {
+        QueuedTask last = null;
+        for (Iterator<Runnable> it = mQueue.iterator(); it.hasNext(); ) {
+            QueuedTask queued = (QueuedTask) it.next();
+            if (last == null || queued.compareTo(last) > 0) {
+                last = queued;
+            }
+        }
+        if (last != null) {
+            mQueue.remove(last);
+        }
+        return last;
+    }
+
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /**
+     * Stop accepting work and drop anything still queued.
+     */
+    public void shutdown() {
+        for (Runnable queued : mExecutor.shutdownNow()) {
+            ((QueuedTask) queued).task.onDropped();
+        }
+    }
+
+    /**
+     * Return a summary of queue depth, shed tasks and queue wait time.
+     */
+    public synchronized String getMetricsSummary() {
+        return "CloudWorkScheduler: submitted=" + mSubmitted
+                + " dropped=" + mDropped
+                + " queueDepth=" + mQueue.size()
+                + " maxQueueDepth=" + mMaxQueueDepth
+                + "\n" + mWaitTime.summary();
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "CloudWorker-" + mCount.incrementAndGet());
+        }
+    }
+}
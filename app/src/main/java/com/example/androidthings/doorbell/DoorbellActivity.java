@@ -18,12 +18,16 @@ package com.example.androidthings.doorbell;
 import android.Manifest;
 import android.app.Activity;
 import android.content.pm.PackageManager;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
 import android.media.Image;
 import android.media.ImageReader;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.view.KeyEvent;
@@ -32,15 +36,18 @@ import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
 import com.google.android.things.contrib.driver.button.Button;
 import com.google.android.things.contrib.driver.button.ButtonInputDriver;
-import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
-import com.google.firebase.database.ServerValue;
 import com.google.firebase.storage.FirebaseStorage;
-import com.google.firebase.storage.StorageReference;
 import com.google.firebase.storage.UploadTask;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -51,15 +58,155 @@ import java.util.Map;
 public class DoorbellActivity extends Activity {
     private static final String TAG = DoorbellActivity.class.getSimpleName();
 
+    // Sized for a 640x480 JPEG still with headroom; larger stills bypass the pool.
+    private static final int FRAME_BUFFER_CAPACITY = 128 * 1024;
+    private static final int FRAME_BUFFER_POOL_SIZE = 4;
+
+    // Cloud Vision batching: send when this many images are queued, or after the window.
+    private static final int ANNOTATION_BATCH_SIZE = 8;
+    private static final long ANNOTATION_BATCH_WINDOW_MS = 250;
+
+    // Size and quality of the image derivative sent to Cloud Vision. Below the largest
+    // still, so high-quality stills are downscaled and smaller ones recompressed.
+    private static final int VISION_MAX_DIMENSION = 480;
+    private static final int VISION_JPEG_QUALITY = 80;
+
+    // Number of top-scoring labels stored with each event for list views.
+    private static final int MAX_LABELS = 3;
+
+    // Quality of the pre-roll frames, encoded from the preview stream at a press.
+    private static final int PREROLL_JPEG_QUALITY = 80;
+
+    // Size and quality of the thumbnail uploaded for the companion app's list.
+    private static final int THUMBNAIL_MAX_DIMENSION = 320;
+    private static final int THUMBNAIL_JPEG_QUALITY = 70;
+
+    // Tag scenes on the device when Cloud Vision does not answer within this, then retry
+    // Cloud Vision after the interval.
+    private static final long ANNOTATION_LATENCY_BUDGET_MS = 5000;
+    private static final long ANNOTATION_RETRY_INTERVAL_MS = 60000;
+
+    // Cloud Vision results are cached by image content, in memory and on disk.
+    private static final long ANNOTATION_CACHE_BYTES = 256 * 1024;
+    private static final long ANNOTATION_CACHE_TTL_MS = 24 * 60 * 60 * 1000;
+    private static final int ANNOTATION_CACHE_DISK_ENTRIES = 512;
+
+    // Events without Cloud Vision labels are annotated again from the archive, a few
+    // at a time, whenever Cloud Vision is reachable.
+    private static final int REANNOTATE_MAX_PENDING = 64;
+    private static final int REANNOTATE_BATCH_SIZE = 4;
+    private static final long REANNOTATE_INTERVAL_MS = 60000;
+
+    // Cloud work runs on a few threads; excess batches are shed, oldest first.
+    private static final int CLOUD_WORKERS = 2;
+    private static final int CLOUD_QUEUE_CAPACITY = 4;
+
+    // Presses within this window of a ring's first press are merged into that ring.
+    private static final long RING_COALESCE_WINDOW_MS = 3000;
+    // Whether a ring with merged presses captures one extra frame when its window closes.
+    private static final boolean RING_EXTRA_FRAME = true;
+
+    // Number of rings traced at once, and whether each ring's stage timings are
+    // attached to its database entry.
+    private static final int RING_TRACE_CAPACITY = 16;
+    private static final boolean RECORD_RING_TIMINGS = true;
+    private static final String RING_TRACE_FILE = "ring-trace.txt";
+
+    // How long shutdown waits for stills already captured to be spooled.
+    private static final long PROCESSING_SHUTDOWN_TIMEOUT_MS = 2000;
+
+    // Number of spooled images uploaded at the same time.
+    private static final int MAX_CONCURRENT_UPLOADS = 2;
+
+    // Fields written to an event within this window are sent in one update.
+    private static final long RECORD_COALESCE_WINDOW_MS = 500;
+
+    // Stills are also kept on the device in segments of this size, newest 64MB.
+    private static final long ARCHIVE_MAX_BYTES = 64 * 1024 * 1024;
+    private static final long ARCHIVE_SEGMENT_BYTES = 4 * 1024 * 1024;
+    private static final int ARCHIVE_SEGMENT_IMAGES = 256;
+
+    // Stills start at the baseline 320x240 profile. They step up to 640x480 while at
+    // most one image waits and a high-quality still uploads in about a second, and step
+    // down to 160x120 while six images wait, until fewer than two do.
+    private static final int CAPTURE_REDUCED_BACKLOG = 2;
+    private static final int CAPTURE_MINIMAL_BACKLOG = 6;
+    private static final long CAPTURE_STEP_UP_UPLINK = 64 * 1024;
+    private static final long CAPTURE_STEP_DOWN_UPLINK = 32 * 1024;
+
+    // Ring automatically when motion is seen: a frame is reduced to a 16x12 grid, and
+    // motion is reported when a tenth of the cells change, at most once per cooldown.
+    // Off by default, as every passer-by would then ring.
+    private static final boolean MOTION_TRIGGER_ENABLED = false;
+    private static final int MOTION_GRID_WIDTH = 16;
+    private static final int MOTION_GRID_HEIGHT = 12;
+    private static final int MOTION_CELL_THRESHOLD = 20;
+    private static final float MOTION_SENSITIVITY = 0.1f;
+    private static final long MOTION_COOLDOWN_MS = 10000;
+
+    // Stills within this many differing hash bits of one from the last few minutes are
+    // uploaded as a small derivative and not annotated.
+    private static final int DUPLICATE_INDEX_SIZE = 32;
+    private static final int DUPLICATE_HASH_THRESHOLD = 6;
+    private static final long DUPLICATE_MAX_AGE_MS = 5 * 60 * 1000;
+    private static final int DUPLICATE_MAX_DIMENSION = 160;
+
+    private static final String TRIGGER_BUTTON = "button";
+    private static final String TRIGGER_MOTION = "motion";
+
     private FirebaseDatabase mDatabase;
+    private EventRecordWriter mRecordWriter;
     private FirebaseStorage mStorage;
     private DoorbellCamera mCamera;
 
+    /**
+     * Identifies the doorbell event and role of each requested still.
+     */
+    private static class CaptureTag {
+        final String key;
+        final String trigger;
+        final boolean extraFrame;
+
+        CaptureTag(String key, String trigger, boolean extraFrame) {
+            this.key = key;
+            this.trigger = trigger;
+            this.extraFrame = extraFrame;
+        }
+    }
+
+    /**
+     * Pool of image buffers shared between the camera, uploader and annotator.
+     */
+    private final FrameBufferPool mFramePool =
+            new FrameBufferPool(FRAME_BUFFER_CAPACITY, FRAME_BUFFER_POOL_SIZE);
+
     /**
      * Driver for the doorbell button;
      */
     private ButtonInputDriver mButtonInputDriver;
 
+    /**
+     * Merges repeated presses into a single ring.
+     */
+    private RingCoalescer mRingCoalescer;
+
+    /**
+     * Push key of the ring currently accepting merged presses.
+     */
+    private String mCurrentRingKey;
+
+    /**
+     * What caused the press being handled, recorded on each new ring.
+     */
+    private String mPressTrigger = TRIGGER_BUTTON;
+
+    private final Handler mMainHandler = new Handler();
+
+    /**
+     * Timestamps each stage of a ring, from press to stored annotations.
+     */
+    private final RingTracer mRingTracer = new RingTracer(RING_TRACE_CAPACITY);
+
     /**
      * A {@link Handler} for running Camera tasks in the background.
      */
@@ -71,14 +218,74 @@ public class DoorbellActivity extends Activity {
     private HandlerThread mCameraThread;
 
     /**
-     * A {@link Handler} for running Cloud tasks in the background.
+     * Thread that hashes, spools, archives and scales each still once the camera
+     * thread has copied it, so the camera is free for the next capture.
+     */
+    private HandlerThread mProcessingThread;
+    private Handler mProcessingHandler;
+
+    /**
+     * Bounded pool of threads for running Cloud tasks that shouldn't block the UI.
+     */
+    private CloudWorkScheduler mCloudScheduler;
+
+    /**
+     * Coalesces images from rings in quick succession into one Cloud Vision request.
+     */
+    private AnnotationBatcher mAnnotationBatcher;
+
+    /**
+     * Chooses between Cloud Vision and on-device scene tagging.
+     */
+    private AnnotatorPolicy mAnnotator;
+
+    /**
+     * Remembers Cloud Vision results, so retried or identical images are not resent.
+     */
+    private CachingAnnotator mAnnotationCache;
+
+    /**
+     * Name of the annotator whose labels are final; others are replaced later.
+     */
+    private String mPreferredAnnotator;
+
+    /**
+     * Events to annotate again once Cloud Vision is reachable.
+     */
+    private final ReannotationQueue mReannotationQueue =
+            new ReannotationQueue(REANNOTATE_MAX_PENDING);
+
+    /**
+     * Produces the small derivative shown in the companion app's list.
      */
-    private Handler mCloudHandler;
+    private final VisionImagePreprocessor mThumbnailer = new VisionImagePreprocessor(
+            mFramePool, THUMBNAIL_MAX_DIMENSION, THUMBNAIL_JPEG_QUALITY);
 
     /**
-     * An additional thread for running Cloud tasks that shouldn't block the UI.
+     * Picks the still size and quality from the upload backlog.
      */
-    private HandlerThread mCloudThread;
+    private final CaptureProfilePolicy mCaptureProfilePolicy =
+            new CaptureProfilePolicy(CAPTURE_REDUCED_BACKLOG, CAPTURE_MINIMAL_BACKLOG,
+                    CAPTURE_STEP_UP_UPLINK, CAPTURE_STEP_DOWN_UPLINK);
+
+    /**
+     * Recognizes stills that look like a recent one, and shrinks them for upload.
+     */
+    private final NearDuplicateIndex mDuplicateIndex = new NearDuplicateIndex(
+            DUPLICATE_INDEX_SIZE, DUPLICATE_HASH_THRESHOLD, DUPLICATE_MAX_AGE_MS);
+    private final VisionImagePreprocessor mDuplicateDownscaler = new VisionImagePreprocessor(
+            mFramePool, DUPLICATE_MAX_DIMENSION, VISION_JPEG_QUALITY);
+
+    /**
+     * Durable queue of doorbell events waiting for upload, and the uploader draining it.
+     */
+    private UploadSpool mUploadSpool;
+    private SpoolUploader mSpoolUploader;
+
+    /**
+     * Rolling copy of recent stills on the device, for review during an outage.
+     */
+    private ImageArchive mImageArchive;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -95,21 +302,74 @@ public class DoorbellActivity extends Activity {
 
         mDatabase = FirebaseDatabase.getInstance();
         mStorage = FirebaseStorage.getInstance();
+        mRecordWriter = new EventRecordWriter(mDatabase.getReference("logs"),
+                RECORD_COALESCE_WINDOW_MS, mRecordListener);
 
         // Creates new handlers and associated threads for camera and networking operations.
         mCameraThread = new HandlerThread("CameraBackground");
         mCameraThread.start();
         mCameraHandler = new Handler(mCameraThread.getLooper());
+        mProcessingThread = new HandlerThread("StillProcessing",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mProcessingThread.start();
+        mProcessingHandler = new Handler(mProcessingThread.getLooper());
+
+        mCloudScheduler = new CloudWorkScheduler(CLOUD_WORKERS, CLOUD_QUEUE_CAPACITY,
+                CloudWorkScheduler.ShedPolicy.DROP_OLDEST);
+        ImageAnnotator cloudAnnotator = new CloudVisionAnnotator();
+        mPreferredAnnotator = cloudAnnotator.getName();
+        mAnnotator = new AnnotatorPolicy(this, cloudAnnotator,
+                new SceneTagAnnotator(), ANNOTATION_LATENCY_BUDGET_MS,
+                ANNOTATION_RETRY_INTERVAL_MS);
+        // The cache is consulted first, so it also answers while offline
+        mAnnotationCache = new CachingAnnotator(mAnnotator, mPreferredAnnotator,
+                ANNOTATION_CACHE_BYTES, ANNOTATION_CACHE_TTL_MS,
+                new File(getCacheDir(), "annotations"), ANNOTATION_CACHE_DISK_ENTRIES);
+        mAnnotationBatcher = new AnnotationBatcher(mCloudScheduler, mAnnotationCache,
+                new VisionImagePreprocessor(mFramePool, VISION_MAX_DIMENSION, VISION_JPEG_QUALITY),
+                ANNOTATION_BATCH_SIZE, ANNOTATION_BATCH_WINDOW_MS, mAnnotationListener);
+
+        // Persist events before uploading, so rings during an outage are not lost.
+        try {
+            mUploadSpool = new UploadSpool(new File(getFilesDir(), "spool"));
+            mSpoolUploader = new SpoolUploader(this, mUploadSpool, mFramePool, mStorage,
+                    new File(getFilesDir(), "upload-staging"), MAX_CONCURRENT_UPLOADS,
+                    mUploadListener);
+            mSpoolUploader.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open upload spool", e);
+        }
 
-        mCloudThread = new HandlerThread("CloudThread");
-        mCloudThread.start();
-        mCloudHandler = new Handler(mCloudThread.getLooper());
+        try {
+            mImageArchive = new ImageArchive(new File(getFilesDir(), "archive"),
+                    ARCHIVE_MAX_BYTES, ARCHIVE_SEGMENT_BYTES, ARCHIVE_SEGMENT_IMAGES);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open image archive", e);
+        }
+
+        // Events recovered from the spool may not have been annotated before the restart;
+        // the cache answers for those that were, without another Vision request.
+        if (mUploadSpool != null) {
+            List<String> recovered = new ArrayList<>();
+            for (UploadSpool.Record record : mUploadSpool.getPending()) {
+                recovered.add(record.key);
+            }
+            reannotate(recovered);
+        }
+        mMainHandler.postDelayed(mReannotateRunnable, REANNOTATE_INTERVAL_MS);
 
         // Initialize the doorbell button driver
+        mRingCoalescer = new RingCoalescer(RING_COALESCE_WINDOW_MS, RING_EXTRA_FRAME,
+                mRingListener);
         initPIO();
 
         // Camera code is complicated, so we've shoved it all in this closet class for you.
         mCamera = DoorbellCamera.getInstance();
+        if (MOTION_TRIGGER_ENABLED) {
+            mCamera.setMotionDetection(new MotionDetector(MOTION_GRID_WIDTH, MOTION_GRID_HEIGHT,
+                    MOTION_CELL_THRESHOLD, MOTION_SENSITIVITY, MOTION_COOLDOWN_MS),
+                    mMotionListener);
+        }
         mCamera.initializeCamera(this, mCameraHandler, mOnImageAvailableListener);
     }
 
@@ -130,9 +390,51 @@ public class DoorbellActivity extends Activity {
     protected void onDestroy() {
         super.onDestroy();
         mCamera.shutDown();
+        Log.i(TAG, mFramePool.toString());
+        Log.i(TAG, CloudVisionUtils.getLatencySummary());
+        Log.i(TAG, mAnnotationBatcher.getMetricsSummary());
+        Log.i(TAG, mAnnotator.getMetricsSummary());
+        Log.i(TAG, mAnnotationCache.getMetricsSummary());
+        Log.i(TAG, mReannotationQueue.getMetricsSummary());
+        Log.i(TAG, mCloudScheduler.getMetricsSummary());
+        Log.i(TAG, mDuplicateIndex.getMetricsSummary());
+        Log.i(TAG, "Thumbnails " + mThumbnailer.getMetricsSummary());
+        Log.i(TAG, mRingTracer.toString());
+        Log.i(TAG, "Rings: " + mRingCoalescer.getRingCount()
+                + " suppressed presses: " + mRingCoalescer.getSuppressedCount());
+        mMainHandler.removeCallbacks(mCloseRingRunnable);
+        mMainHandler.removeCallbacks(mReannotateRunnable);
+        // let stills already handed over finish spooling before the spool closes
+        mProcessingThread.quitSafely();
+        try {
+            mProcessingThread.join(PROCESSING_SHUTDOWN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mRecordWriter.flush();
+        Log.i(TAG, mRecordWriter.getMetricsSummary());
+        if (mSpoolUploader != null) {
+            Log.i(TAG, mSpoolUploader.getMetricsSummary());
+            mSpoolUploader.stop();
+            try {
+                mUploadSpool.close();
+            } catch (IOException e) {
+                Log.e(TAG, "upload spool error", e);
+            }
+        }
+
+        if (mImageArchive != null) {
+            Log.i(TAG, mImageArchive.getMetricsSummary());
+            try {
+                mImageArchive.close();
+            } catch (IOException e) {
+                Log.e(TAG, "image archive error", e);
+            }
+        }
 
         mCameraThread.quitSafely();
-        mCloudThread.quitSafely();
+        mCloudScheduler.shutdown();
+        mAnnotator.shutdown();
         try {
             mButtonInputDriver.close();
         } catch (IOException e) {
@@ -145,12 +447,69 @@ public class DoorbellActivity extends Activity {
         if (keyCode == KeyEvent.KEYCODE_ENTER) {
             // Doorbell rang!
             Log.d(TAG, "button pressed");
-            mCamera.takePicture();
+            onPress(TRIGGER_BUTTON);
             return true;
         }
         return super.onKeyUp(keyCode, event);
     }
 
+    /**
+     * Treat detected motion like a button press, so it shares ring coalescing.
+     */
+    private final DoorbellCamera.MotionListener mMotionListener =
+            new DoorbellCamera.MotionListener() {
+        @Override
+        public void onMotion() {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    onPress(TRIGGER_MOTION);
+                }
+            });
+        }
+    };
+
+    private void onPress(String trigger) {
+        mPressTrigger = trigger;
+        mRingCoalescer.onPress(SystemClock.elapsedRealtime(), TRIGGER_BUTTON.equals(trigger));
+    }
+
+    /**
+     * Starts a capture for each new ring and records merged presses on the event.
+     */
+    private final RingCoalescer.Listener mRingListener = new RingCoalescer.Listener() {
+        @Override
+        public void onRing() {
+            mCurrentRingKey = mDatabase.getReference("logs").push().getKey();
+            mRingTracer.begin(mCurrentRingKey);
+            // the trigger is recorded with the still, so a failed capture leaves no record
+            mCamera.takePicture(new CaptureTag(mCurrentRingKey, mPressTrigger, false));
+            mMainHandler.postDelayed(mCloseRingRunnable, mRingCoalescer.getWindowMs());
+        }
+
+        @Override
+        public void onExtraFrame() {
+            mCamera.takePicture(new CaptureTag(mCurrentRingKey, mPressTrigger, true));
+        }
+
+        @Override
+        public void onRingClosed(int suppressedPresses) {
+            mMainHandler.removeCallbacks(mCloseRingRunnable);
+            if (suppressedPresses > 0) {
+                Log.d(TAG, "Merged " + suppressedPresses + " presses into ring");
+                mRecordWriter.edit(mCurrentRingKey)
+                        .set("suppressedPresses", suppressedPresses).commit();
+            }
+        }
+    };
+
+    private final Runnable mCloseRingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mRingCoalescer.closeExpired(SystemClock.elapsedRealtime());
+        }
+    };
+
     /**
      * Listener for new camera images.
      */
@@ -158,68 +517,360 @@ public class DoorbellActivity extends Activity {
             new ImageReader.OnImageAvailableListener() {
         @Override
         public void onImageAvailable(ImageReader reader) {
-            Image image = reader.acquireLatestImage();
-            // get image bytes
+            // Each still belongs to its own capture tag, so none may be skipped
+            Image image = reader.acquireNextImage();
+            if (image == null) {
+                return;
+            }
+            // copy image bytes into a pooled buffer
             ByteBuffer imageBuf = image.getPlanes()[0].getBuffer();
-            final byte[] imageBytes = new byte[imageBuf.remaining()];
-            imageBuf.get(imageBytes);
+            FrameBuffer frame = mFramePool.acquire(imageBuf.remaining());
+            frame.setLength(imageBuf.remaining());
+            imageBuf.get(frame.getData(), 0, frame.getLength());
             image.close();
 
-            onPictureTaken(imageBytes);
+            // the tag and pre-roll belong to this still, so take them before handing off
+            final FrameBuffer still = frame;
+            final List<YuvImage> preRollFrames = mCamera.takePreRollFrames();
+            final CaptureTag tag = (CaptureTag) mCamera.takeCaptureTag();
+            mProcessingHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onPictureTaken(still, preRollFrames, tag);
+                    still.release();
+                }
+            });
         }
     };
 
     /**
-     * Upload image data to Firebase as a doorbell event.
+     * Spool image data for upload to Firebase as a doorbell event, and upload
+     * its thumbnail and any frames captured just before the button press. Extra
+     * frames of a ring are uploaded alongside its event instead. Runs on the still
+     * processing thread.
      */
-    private void onPictureTaken(final byte[] imageBytes) {
-        if (imageBytes != null) {
-            final DatabaseReference log = mDatabase.getReference("logs").push();
-            final StorageReference imageRef = mStorage.getReference().child(log.getKey());
+    private void onPictureTaken(final FrameBuffer frame, List<YuvImage> preRollFrames,
+                                CaptureTag tag) {
+        if (frame != null) {
+            final String key = tag != null
+                    ? tag.key
+                    : mDatabase.getReference("logs").push().getKey();
+            if (tag != null && tag.extraFrame) {
+                frame.retain();
+                UploadTask task = mStorage.getReference().child(key + "-extra")
+                        .putStream(frame.openStream());
+                recordSideUpload(task, key, "extra", frame);
+                return;
+            }
+            mRingTracer.mark(key, RingTracer.STAGE_FRAME);
+            if (mUploadSpool == null) {
+                Log.e(TAG, "Upload spool unavailable, dropping event");
+                return;
+            }
 
-            // upload image to storage
-            UploadTask task = imageRef.putBytes(imageBytes);
-            task.addOnSuccessListener(new OnSuccessListener<UploadTask.TaskSnapshot>() {
-                @Override
-                public void onSuccess(UploadTask.TaskSnapshot taskSnapshot) {
-                    Uri downloadUrl = taskSnapshot.getDownloadUrl();
-                    // mark image in the database
-                    Log.i(TAG, "Image upload successful");
-                    log.child("timestamp").setValue(ServerValue.TIMESTAMP);
-                    log.child("image").setValue(downloadUrl.toString());
-                    // process image annotations
-                    annotateImage(log, imageBytes);
-                }
-            }).addOnFailureListener(new OnFailureListener() {
+            // a still that looks like a recent one is uploaded small and not annotated
+            EventRecordWriter.Record record = mRecordWriter.edit(key);
+            final String duplicateOf = mDuplicateIndex.check(key, frame,
+                    SystemClock.elapsedRealtime());
+            FrameBuffer upload = duplicateOf != null
+                    ? mDuplicateDownscaler.process(frame)
+                    : frame.retain();
+            if (duplicateOf != null) {
+                Log.d(TAG, "Still looks like " + duplicateOf + ", uploading "
+                        + upload.getLength() + " of " + frame.getLength() + " bytes");
+                mDuplicateIndex.addSavedBytes(frame.getLength() - upload.getLength());
+                record.set("duplicateOf", duplicateOf);
+            }
+            if (tag != null) {
+                record.set("trigger", tag.trigger);
+            }
+
+            // persist the image before attempting the upload
+            long timestamp = System.currentTimeMillis();
+            try {
+                mUploadSpool.append(key, timestamp, upload);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to spool image", e);
+                return;
+            } finally {
+                upload.release();
+            }
+            mRingTracer.mark(key, RingTracer.STAGE_SPOOLED);
+            archive(key, timestamp, frame);
+
+            // upload, record and annotate the event concurrently
+            runOnUiThread(new Runnable() {
                 @Override
-                public void onFailure(@NonNull Exception e) {
-                    // clean up this entry
-                    Log.w(TAG, "Unable to upload image to Firebase");
-                    log.removeValue();
+                public void run() {
+                    mSpoolUploader.drain();
+                    updateCaptureProfile();
                 }
             });
+            record.set("timestamp", timestamp).commit();
+            if (duplicateOf != null) {
+                onAnnotationFinished(key);
+            } else {
+                mAnnotationBatcher.enqueue(key, frame);
+            }
+
+            uploadThumbnail(key, frame);
+            uploadPreRollFrames(key, preRollFrames);
         }
     }
 
     /**
-     * Process image contents with Cloud Vision.
+     * Marks each event as recorded once its fields have reached the database.
+     */
+    private final EventRecordWriter.Listener mRecordListener =
+            new EventRecordWriter.Listener() {
+        @Override
+        public void onRecorded(String key) {
+            mRingTracer.mark(key, RingTracer.STAGE_RECORDED);
+        }
+    };
+
+    /**
+     * Keep a copy of a still in the on-device archive.
      */
-    private void annotateImage(final DatabaseReference ref, final byte[] imageBytes) {
-        mCloudHandler.post(new Runnable() {
+    private void archive(String key, long timestamp, FrameBuffer frame) {
+        if (mImageArchive == null) {
+            return;
+        }
+        try {
+            mImageArchive.append(key, timestamp, frame);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to archive image " + key, e);
+        }
+    }
+
+    /**
+     * Records each uploaded image on its doorbell event.
+     */
+    private final SpoolUploader.Listener mUploadListener = new SpoolUploader.Listener() {
+        @Override
+        public void onUploaded(String key, long timestamp, Uri downloadUrl) {
+            // mark image in the database; the timestamp is rewritten for events
+            // recovered from the spool after a restart
+            mRecordWriter.edit(key)
+                    .set("timestamp", timestamp)
+                    .set("image", downloadUrl.toString())
+                    .commit();
+            if (mRingTracer.mark(key, RingTracer.STAGE_UPLOADED)) {
+                onRingComplete(key);
+            }
+            updateCaptureProfile();
+        }
+    };
+
+    /**
+     * Adapt the still size and quality to the upload backlog and uplink throughput.
+     */
+    private void updateCaptureProfile() {
+        List<CaptureProfile> profiles = mCamera.getCaptureProfiles();
+        if (profiles.isEmpty()) {
+            return;
+        }
+        mCamera.setCaptureProfile(mCaptureProfilePolicy.choose(profiles,
+                mUploadSpool.getPending().size(), mSpoolUploader.getUplinkBytesPerSecond()));
+    }
+
+    /**
+     * Upload a small derivative of the event image for list views. Images the
+     * thumbnailer passes through unchanged are not uploaded again; the companion
+     * shows the event image for entries without a thumbnail.
+     */
+    private void uploadThumbnail(String key, FrameBuffer frame) {
+        FrameBuffer thumbnail = mThumbnailer.process(frame);
+        if (thumbnail == frame) {
+            thumbnail.release();
+            return;
+        }
+        UploadTask task = mStorage.getReference().child(key + "-thumb")
+                .putStream(thumbnail.openStream());
+        recordSideUpload(task, key, "thumbnail", thumbnail);
+    }
+
+    /**
+     * Encode pre-roll frames, upload them next to the event image and list them under
+     * the event.
+     */
+    private void uploadPreRollFrames(String key, List<YuvImage> frames) {
+        for (int i = 0; i < frames.size(); i++) {
+            YuvImage frame = frames.get(i);
+            ByteArrayOutputStream jpeg = new ByteArrayOutputStream(16 * 1024);
+            frame.compressToJpeg(new Rect(0, 0, frame.getWidth(), frame.getHeight()),
+                    PREROLL_JPEG_QUALITY, jpeg);
+            String index = String.valueOf(i);
+            UploadTask task = mStorage.getReference()
+                    .child(key + "-preroll-" + index)
+                    .putBytes(jpeg.toByteArray());
+            recordSideUpload(task, key, "preroll/" + index, null);
+        }
+    }
+
+    /**
+     * Store the download URL of an auxiliary image in a field of its event once its
+     * upload completes, releasing the frame it was read from, if any.
+     */
+    private void recordSideUpload(UploadTask task, final String key, final String field,
+                                  final FrameBuffer frame) {
+        task.addOnSuccessListener(new OnSuccessListener<UploadTask.TaskSnapshot>() {
+            @Override
+            public void onSuccess(UploadTask.TaskSnapshot taskSnapshot) {
+                mRecordWriter.edit(key)
+                        .set(field, taskSnapshot.getDownloadUrl().toString())
+                        .commit();
+                if (frame != null) {
+                    frame.release();
+                }
+            }
+        }).addOnFailureListener(new OnFailureListener() {
+            @Override
+            public void onFailure(@NonNull Exception e) {
+                Log.w(TAG, "Unable to upload " + field + " image for " + key, e);
+                if (frame != null) {
+                    frame.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes image annotations back to their doorbell event.
+     */
+    private final AnnotationBatcher.Listener mAnnotationListener =
+            new AnnotationBatcher.Listener() {
+        @Override
+        public void onAnnotated(String key, ImageAnnotations annotations) {
+            Log.d(TAG, "image annotations:" + annotations);
+            if (annotations != null && mPreferredAnnotator.equals(annotations.getAnnotator())) {
+                // Scene tags only stand in until the event has labels
+                mRecordWriter.edit(key)
+                        .set("annotations", annotations.getScores())
+                        .set("labels", topLabels(annotations.getScores(), MAX_LABELS))
+                        .set("annotator", annotations.getAnnotator())
+                        .set("sceneTags", null)
+                        .commit();
+                mReannotationQueue.remove(key);
+            } else if (annotations != null) {
+                // On-device scene tags are not labels, so they are kept apart from them
+                mRecordWriter.edit(key)
+                        .set("sceneTags", topLabels(annotations.getScores(), MAX_LABELS))
+                        .commit();
+                mReannotationQueue.add(key);
+            } else {
+                // The annotator failed on this image alone
+                mReannotationQueue.add(key);
+            }
+            onAnnotationFinished(key);
+        }
+
+        @Override
+        public void onAnnotationFailed(String key, IOException e) {
+            Log.e(TAG, "Image annotation error: ", e);
+            mReannotationQueue.add(key);
+            onAnnotationFinished(key);
+        }
+
+        @Override
+        public void onAnnotationDropped(String key) {
+            Log.w(TAG, "Annotation skipped under load for " + key);
+            mReannotationQueue.add(key);
+            onAnnotationFinished(key);
+        }
+    };
+
+    /**
+     * Periodically hands queued events back to the batcher while Cloud Vision is
+     * reachable, so events with only scene tags get labels.
+     */
+    private final Runnable mReannotateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mReannotationQueue.size() > 0 && mAnnotator.isRemoteAvailable()) {
+                reannotate(mReannotationQueue.take(REANNOTATE_BATCH_SIZE));
+            }
+            mMainHandler.postDelayed(this, REANNOTATE_INTERVAL_MS);
+        }
+    };
+
+    /**
+     * Read the archived stills of earlier events and queue them for annotation.
+     */
+    private void reannotate(final List<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        mProcessingHandler.post(new Runnable() {
             @Override
             public void run() {
-                Log.d(TAG, "sending image to cloud vision");
-                // annotate image by uploading to Cloud Vision API
-                try {
-                    Map<String, Float> annotations = CloudVisionUtils.annotateImage(imageBytes);
-                    Log.d(TAG, "cloud vision annotations:" + annotations);
-                    if (annotations != null) {
-                        ref.child("annotations").setValue(annotations);
+                for (String key : keys) {
+                    FrameBuffer frame = readArchived(key);
+                    if (frame == null) {
+                        Log.w(TAG, "No archived image to annotate again for " + key);
+                        continue;
                     }
-                } catch (IOException e) {
-                    Log.e(TAG, "Cloud Vison API error: ", e);
+                    mAnnotationBatcher.enqueue(key, frame);
+                    frame.release();
                 }
             }
         });
     }
+
+    /**
+     * Return the archived still of an event, or null if it is no longer archived.
+     */
+    private FrameBuffer readArchived(String key) {
+        if (mImageArchive == null) {
+            return null;
+        }
+        ImageArchive.Entry entry = mImageArchive.findByKey(key);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return mImageArchive.read(entry, mFramePool);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read archived image " + key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Return up to {@code limit} labels with the highest scores, best first.
+     */
+    static List<String> topLabels(final Map<String, Float> annotations, int limit) {
+        List<String> labels = new ArrayList<>(annotations.keySet());
+        Collections.sort(labels, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Float.compare(annotations.get(b), annotations.get(a));
+            }
+        });
+        return new ArrayList<>(labels.subList(0, Math.min(labels.size(), limit)));
+    }
+
+    /**
+     * Mark annotation as finished for a ring, whatever its outcome.
+     */
+    private void onAnnotationFinished(String key) {
+        if (mRingTracer.mark(key, RingTracer.STAGE_ANNOTATED)) {
+            onRingComplete(key);
+        }
+    }
+
+    /**
+     * Store the ring's stage timings and refresh the local trace report.
+     */
+    private void onRingComplete(String key) {
+        Map<String, Long> timings = mRingTracer.getTimings(key);
+        if (RECORD_RING_TIMINGS && timings != null) {
+            mRecordWriter.edit(key).set("timings", timings).commit();
+        }
+        try {
+            mRingTracer.dump(new File(getFilesDir(), RING_TRACE_FILE));
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write ring trace", e);
+        }
+    }
 }
@@ -17,21 +17,32 @@ package com.example.androidthings.doorbell;
 
 import android.content.Context;
 import android.graphics.ImageFormat;
+import android.graphics.YuvImage;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
 import android.media.ImageReader;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Size;
+import android.view.Surface;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import static android.content.Context.CAMERA_SERVICE;
 
@@ -41,9 +52,64 @@ import static android.content.Context.CAMERA_SERVICE;
 public class DoorbellCamera {
     private static final String TAG = DoorbellCamera.class.getSimpleName();
 
-    private static final int IMAGE_WIDTH = 320;
-    private static final int IMAGE_HEIGHT = 240;
-    private static final int MAX_IMAGES = 1;
+    // A ring's still and its extra frame can be queued at the same time.
+    private static final int MAX_IMAGES = 2;
+
+    // Target still size and quality of each capture profile, best first. The nearest
+    // supported size is used, and the baseline profile is the default.
+    private static final String[] PROFILE_NAMES = {"high", "baseline", "low"};
+    private static final int[][] PROFILE_SIZES = {{640, 480}, {320, 240}, {160, 120}};
+    private static final int[] PROFILE_JPEG_QUALITY = {90, 85, 70};
+    private static final int BASELINE_PROFILE = 1;
+
+    // Low-resolution YUV stream feeding the pre-roll ring and the motion detector.
+    private static final int PREVIEW_WIDTH = 160;
+    private static final int PREVIEW_HEIGHT = 120;
+    private static final int PREVIEW_MAX_IMAGES = 2;
+
+    // Pre-roll frames are kept in memory as NV21, so a press includes frames from
+    // before it. Only the frames taken at a press are ever encoded.
+    private static final int PREROLL_FRAMES = 5;
+    private static final int PREROLL_FRAME_CAPACITY = PREVIEW_WIDTH * PREVIEW_HEIGHT * 3 / 2;
+    private static final long PREROLL_INTERVAL_MS = 400;
+    private static final long PREROLL_MAX_AGE_MS = 3000;
+
+    // Delay before reopening the camera after an error, doubling up to the maximum.
+    private static final long INITIAL_REOPEN_DELAY_MS = 500;
+    private static final long MAX_REOPEN_DELAY_MS = 30 * 1000;
+
+    // Interval between preview frames analysed for motion.
+    private static final long MOTION_INTERVAL_MS = 200;
+
+    /**
+     * Lifecycle of the camera device.
+     */
+    private enum State {
+        // Not initialized, or no camera was found
+        IDLE,
+        // Waiting for the device to open
+        OPENING,
+        // The device is open
+        OPEN,
+        // The device failed and will be reopened after a delay
+        RECONNECTING,
+        // Released for good
+        SHUT_DOWN
+    }
+
+    private volatile State mState = State.IDLE;
+
+    private CameraManager mCameraManager;
+    private String mCameraId;
+    private long mReopenDelayMs = INITIAL_REOPEN_DELAY_MS;
+
+    // Time the camera was initialized, until its first capture session is configured.
+    private volatile long mBootTimeMs;
+    private volatile long mBootToSessionMs;
+    // Time the device last failed, until it is open again.
+    private long mFailureTimeMs;
+    private final LatencyHistogram mRecoveryLatency = new LatencyHistogram("camera-recovery");
+    private int mReconnects;
 
     private CameraDevice mCameraDevice;
 
@@ -54,6 +120,97 @@ public class DoorbellCamera {
      */
     private ImageReader mImageReader;
 
+    /**
+     * An {@link ImageReader} that receives the YUV preview stream used for pre-roll and
+     * motion detection, or null if both are disabled or the camera cannot stream it
+     * alongside stills.
+     */
+    private ImageReader mPreviewReader;
+
+    // Whether the session being configured includes the preview stream.
+    private boolean mSessionHasPreview;
+
+    private boolean mPreRollEnabled = true;
+
+    private volatile FrameRingBuffer mPreRollBuffer;
+
+    private long mLastPreRollFrameMs;
+
+    // Preview frame repacked as NV21 before it is copied into the ring.
+    private final byte[] mNv21Frame = new byte[PREROLL_FRAME_CAPACITY];
+
+    /**
+     * Listener for motion detected in the preview stream.
+     */
+    public interface MotionListener {
+        /**
+         * Called on the camera background thread when motion is detected.
+         */
+        void onMotion();
+    }
+
+    private MotionDetector mMotionDetector;
+
+    private MotionListener mMotionListener;
+
+    private long mLastMotionFrameMs;
+
+    // Pre-roll frames captured at the time of the last press, waiting for its still.
+    private List<byte[]> mPendingPreRoll = Collections.emptyList();
+
+    /**
+     * A {@link Handler} on which all camera state is touched and callbacks are delivered.
+     */
+    private Handler mBackgroundHandler;
+
+    /**
+     * When set, a single capture session is created as soon as the camera opens and is
+     * reused for every still. Otherwise a session is created and closed for each press,
+     * and the pre-roll and motion streams, which need a running session, are paused.
+     */
+    private boolean mWarmSessionEnabled = true;
+
+    // True while a capture session is being configured.
+    private boolean mSessionPending;
+
+    // Number of stills requested before the session was ready.
+    private int mPendingCaptures;
+
+    // Profiles supported by the camera, best first, and the one stills are taken with.
+    private List<CaptureProfile> mProfiles = Collections.emptyList();
+    private CaptureProfile mProfile;
+
+    // Profile to switch to once no still is outstanding, or null.
+    private CaptureProfile mPendingProfile;
+
+    // Image readers replaced by profile switches, each closed once the session that
+    // used it has closed. Several can be waiting when profiles switch in quick succession.
+    private final Map<CameraCaptureSession, ImageReader> mRetiredImageReaders =
+            new HashMap<>();
+
+    private ImageReader.OnImageAvailableListener mImageListener;
+
+    /**
+     * A still that has been requested but not yet delivered.
+     */
+    private static class PendingStill {
+        final Object tag;
+        final long pressTimeMs;
+        // Set once the still's frame is available, so its latency is recorded once.
+        boolean frameAvailable;
+
+        PendingStill(Object tag, long pressTimeMs) {
+            this.tag = tag;
+            this.pressTimeMs = pressTimeMs;
+        }
+    }
+
+    // Stills that have been requested but not yet delivered, oldest first.
+    private final ArrayDeque<PendingStill> mCaptureTags = new ArrayDeque<>();
+
+    private final LatencyHistogram mPressToFrameLatency =
+            new LatencyHistogram("press-to-frame");
+
     // Lazy-loaded singleton, so only one instance of the camera is created.
     private DoorbellCamera() {
     }
@@ -72,6 +229,23 @@ public class DoorbellCamera {
     public void initializeCamera(Context context,
                                  Handler backgroundHandler,
                                  ImageReader.OnImageAvailableListener imageAvailableListener) {
+        mBackgroundHandler = backgroundHandler;
+        mBootTimeMs = SystemClock.elapsedRealtime();
+        mBootToSessionMs = 0;
+
+        // The camera outlives activities, so forget the state a previous one left behind
+        mState = State.IDLE;
+        mReopenDelayMs = INITIAL_REOPEN_DELAY_MS;
+        mFailureTimeMs = 0;
+        mSessionPending = false;
+        mPendingProfile = null;
+        mPendingPreRoll = Collections.emptyList();
+        mPreviewReader = null;
+        synchronized (mCaptureTags) {
+            mCaptureTags.clear();
+            mPendingCaptures = 0;
+        }
+
         // Discover the camera instance
         CameraManager manager = (CameraManager) context.getSystemService(CAMERA_SERVICE);
         String[] camIds = {};
@@ -87,17 +261,155 @@ public class DoorbellCamera {
         String id = camIds[0];
         Log.d(TAG, "Using camera id " + id);
 
+        // Pick the still sizes this camera supports
+        Size[] jpegSizes = null;
+        try {
+            StreamConfigurationMap configs = manager.getCameraCharacteristics(id).get(
+                    CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            jpegSizes = configs.getOutputSizes(ImageFormat.JPEG);
+        } catch (CameraAccessException e) {
+            Log.w(TAG, "Cam access exception getting characteristics", e);
+        }
+        List<CaptureProfile> profiles = new ArrayList<>(PROFILE_NAMES.length);
+        for (int i = 0; i < PROFILE_NAMES.length; i++) {
+            profiles.add(CaptureProfile.create(PROFILE_NAMES[i], PROFILE_SIZES[i][0],
+                    PROFILE_SIZES[i][1], PROFILE_JPEG_QUALITY[i], jpegSizes));
+        }
+        mProfiles = Collections.unmodifiableList(profiles);
+        mProfile = mProfiles.get(BASELINE_PROFILE);
+        Log.d(TAG, "Capture profiles " + mProfiles + ", using " + mProfile);
+
         // Initialize the image processor
-        mImageReader = ImageReader.newInstance(IMAGE_WIDTH, IMAGE_HEIGHT,
-                ImageFormat.JPEG, MAX_IMAGES);
-        mImageReader.setOnImageAvailableListener(
-                imageAvailableListener, backgroundHandler);
+        mImageListener = new LatencyRecordingListener(imageAvailableListener);
+        mImageReader = createImageReader(mProfile);
 
-        // Open the camera resource
+        if (mPreRollEnabled) {
+            mPreRollBuffer = new FrameRingBuffer(PREROLL_FRAMES, PREROLL_FRAME_CAPACITY);
+            Log.d(TAG, "Pre-roll enabled, ring capped at "
+                    + mPreRollBuffer.getMemoryCap() + " bytes");
+        }
+
+        // A YUV stream can run next to JPEG stills on every hardware level
+        if (mPreRollEnabled || mMotionDetector != null) {
+            mPreviewReader = ImageReader.newInstance(PREVIEW_WIDTH, PREVIEW_HEIGHT,
+                    ImageFormat.YUV_420_888, PREVIEW_MAX_IMAGES);
+            mPreviewReader.setOnImageAvailableListener(mPreviewFrameListener, backgroundHandler);
+        }
+
+        // Open the camera resource right away, so it is warm for the first press
+        mCameraManager = manager;
+        mCameraId = id;
+        mBackgroundHandler.post(mOpenCameraRunnable);
+    }
+
+    private final Runnable mOpenCameraRunnable = new Runnable() {
+        @Override
+        public void run() {
+            openCamera();
+        }
+    };
+
+    private void openCamera() {
+        if (mState == State.SHUT_DOWN) {
+            return;
+        }
+        mState = State.OPENING;
         try {
-            manager.openCamera(id, mStateCallback, backgroundHandler);
-        } catch (CameraAccessException cae) {
-            Log.d(TAG, "Camera access exception", cae);
+            mCameraManager.openCamera(mCameraId, mStateCallback, mBackgroundHandler);
+        } catch (CameraAccessException | SecurityException e) {
+            Log.w(TAG, "Unable to open camera", e);
+            scheduleReopen();
+        }
+    }
+
+    /**
+     * Forget outstanding stills and try to open the camera again after a delay.
+     */
+    private void scheduleReopen() {
+        if (mState == State.SHUT_DOWN) {
+            return;
+        }
+        mState = State.RECONNECTING;
+        if (mFailureTimeMs == 0) {
+            mFailureTimeMs = SystemClock.elapsedRealtime();
+        }
+        mSessionPending = false;
+        synchronized (mCaptureTags) {
+            mCaptureTags.clear();
+            mPendingCaptures = 0;
+        }
+        Log.i(TAG, "Reopening camera in " + mReopenDelayMs + "ms");
+        mBackgroundHandler.removeCallbacks(mOpenCameraRunnable);
+        mBackgroundHandler.postDelayed(mOpenCameraRunnable, mReopenDelayMs);
+        mReopenDelayMs = Math.min(mReopenDelayMs * 2, MAX_REOPEN_DELAY_MS);
+    }
+
+    private ImageReader createImageReader(CaptureProfile profile) {
+        ImageReader reader = ImageReader.newInstance(profile.width, profile.height,
+                ImageFormat.JPEG, MAX_IMAGES);
+        reader.setOnImageAvailableListener(mImageListener, mBackgroundHandler);
+        return reader;
+    }
+
+    /**
+     * Return the capture profiles supported by the camera, best quality first, then the
+     * baseline profile stills start with, then smaller ones.
+     * Empty until {@link #initializeCamera} has been called.
+     */
+    public List<CaptureProfile> getCaptureProfiles() {
+        return mProfiles;
+    }
+
+    /**
+     * Take subsequent stills with the given profile. A change of quality applies to the
+     * next still; a change of size replaces the image reader and capture session once
+     * no still is outstanding, without reopening the camera.
+     */
+    public void setCaptureProfile(final CaptureProfile profile) {
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (profile == mProfile && mPendingProfile == null) {
+                    return;
+                }
+                mPendingProfile = profile;
+                applyPendingProfile();
+            }
+        });
+    }
+
+    /**
+     * Switch to the pending profile, unless a still or session is still in progress.
+     */
+    private void applyPendingProfile() {
+        if (mPendingProfile == null || mSessionPending) {
+            return;
+        }
+        synchronized (mCaptureTags) {
+            if (!mCaptureTags.isEmpty()) {
+                return;
+            }
+        }
+        CaptureProfile profile = mPendingProfile;
+        mPendingProfile = null;
+        boolean resize = !profile.hasSameSize(mProfile);
+        Log.d(TAG, "Switching capture profile from " + mProfile + " to " + profile);
+        mProfile = profile;
+        if (!resize || mImageReader == null) {
+            return;
+        }
+
+        ImageReader previous = mImageReader;
+        mImageReader = createImageReader(profile);
+        if (mCaptureSession != null) {
+            // The old surface may be in use until the session has closed
+            mRetiredImageReaders.put(mCaptureSession, previous);
+            closeCaptureSession();
+        } else {
+            previous.close();
+        }
+        if (mCameraDevice != null && isSessionPersistent()) {
+            createCaptureSession();
         }
     }
 
@@ -108,19 +420,41 @@ public class DoorbellCamera {
         @Override
         public void onOpened(CameraDevice cameraDevice) {
             Log.d(TAG, "Opened camera.");
+            if (mState == State.SHUT_DOWN) {
+                cameraDevice.close();
+                return;
+            }
             mCameraDevice = cameraDevice;
+            mState = State.OPEN;
+            mReopenDelayMs = INITIAL_REOPEN_DELAY_MS;
+            if (mFailureTimeMs != 0) {
+                long recovery = SystemClock.elapsedRealtime() - mFailureTimeMs;
+                mFailureTimeMs = 0;
+                mReconnects++;
+                mRecoveryLatency.record(recovery);
+                Log.i(TAG, "Camera recovered in " + recovery + "ms");
+            }
+            if (isSessionPersistent() || mPendingCaptures > 0) {
+                createCaptureSession();
+            }
         }
 
         @Override
         public void onDisconnected(CameraDevice cameraDevice) {
             Log.d(TAG, "Camera disconnected, closing.");
+            closeCaptureSession();
             cameraDevice.close();
+            mCameraDevice = null;
+            scheduleReopen();
         }
 
         @Override
         public void onError(CameraDevice cameraDevice, int i) {
-            Log.d(TAG, "Camera device error, closing.");
+            Log.d(TAG, "Camera device error " + i + ", closing.");
+            closeCaptureSession();
             cameraDevice.close();
+            mCameraDevice = null;
+            scheduleReopen();
         }
 
         @Override
@@ -130,26 +464,285 @@ public class DoorbellCamera {
         }
     };
 
+    /**
+     * Enable or disable the persistent capture session. Disabling it falls back to
+     * creating a session for every still, which is useful for latency comparisons,
+     * and pauses the pre-roll and motion streams until it is enabled again.
+     */
+    public void setWarmSessionEnabled(final boolean enabled) {
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (enabled == mWarmSessionEnabled) {
+                    return;
+                }
+                mWarmSessionEnabled = enabled;
+                // The session's outputs depend on the mode, so rebuild it
+                closeCaptureSession();
+                if (enabled && mCameraDevice != null) {
+                    createCaptureSession();
+                }
+            }
+        });
+    }
+
+    /**
+     * Enable or disable the pre-roll stream. Must be called before
+     * {@link #initializeCamera(Context, Handler, ImageReader.OnImageAvailableListener)}.
+     */
+    public void setPreRollEnabled(boolean enabled) {
+        mPreRollEnabled = enabled;
+    }
+
+    /**
+     * Enable motion-triggered capture. Must be called before
+     * {@link #initializeCamera(Context, Handler, ImageReader.OnImageAvailableListener)}.
+     *
+     * @param detector detector fed with the luma plane of each sampled frame.
+     * @param listener notified when the detector reports motion.
+     */
+    public void setMotionDetection(MotionDetector detector, MotionListener listener) {
+        mMotionDetector = detector;
+        mMotionListener = listener;
+    }
+
+    /**
+     * Return the pre-roll frames captured when the last still was requested, oldest
+     * first, as NV21 images to be encoded by the caller. Each call hands over the
+     * frames, so subsequent calls return an empty list until the next press.
+     */
+    public List<YuvImage> takePreRollFrames() {
+        List<byte[]> frames;
+        synchronized (this) {
+            frames = mPendingPreRoll;
+            mPendingPreRoll = Collections.emptyList();
+        }
+        List<YuvImage> images = new ArrayList<>(frames.size());
+        for (byte[] frame : frames) {
+            images.add(new YuvImage(frame, ImageFormat.NV21, PREVIEW_WIDTH, PREVIEW_HEIGHT,
+                    null));
+        }
+        return images;
+    }
+
+    /**
+     * Return the distribution of time between a press and its frame becoming available.
+     */
+    public LatencyHistogram getPressToFrameLatency() {
+        return mPressToFrameLatency;
+    }
+
     /**
      * Begin a still image capture
      */
     public void takePicture() {
-        if (mCameraDevice == null) {
-            Log.e(TAG, "Cannot capture image. Camera not initialized.");
-            return;
+        takePicture(null);
+    }
+
+    /**
+     * Begin a still image capture, associating a tag with the resulting image.
+     * The tag can be retrieved with {@link #takeCaptureTag()} when the image
+     * becomes available.
+     */
+    public void takePicture(Object tag) {
+        final PendingStill still = new PendingStill(tag, SystemClock.elapsedRealtime());
+        FrameRingBuffer preRollBuffer = mPreRollBuffer;
+        if (preRollBuffer != null) {
+            List<byte[]> frames = preRollBuffer.snapshot(PREROLL_FRAMES,
+                    still.pressTimeMs - PREROLL_MAX_AGE_MS);
+            synchronized (this) {
+                mPendingPreRoll = frames;
+            }
+        }
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mState == State.IDLE || mState == State.SHUT_DOWN) {
+                    Log.e(TAG, "Cannot capture image. Camera not initialized.");
+                    return;
+                }
+                // Until the camera is open, hold on to a single still
+                if (mCameraDevice == null && mPendingCaptures > 0) {
+                    Log.w(TAG, "Camera not ready, a still is already waiting");
+                    return;
+                }
+
+                synchronized (mCaptureTags) {
+                    mCaptureTags.addLast(still);
+                }
+                if (mCameraDevice == null) {
+                    Log.d(TAG, "Camera not ready, capturing once it opens");
+                    mPendingCaptures++;
+                } else if (mCaptureSession != null) {
+                    triggerImageCapture();
+                } else {
+                    mPendingCaptures++;
+                    createCaptureSession();
+                }
+            }
+        });
+    }
+
+    /**
+     * Return the tag passed to {@link #takePicture(Object)} for the oldest image not
+     * yet delivered, or null if it had none. Call once per still image received.
+     */
+    public Object takeCaptureTag() {
+        PendingStill still;
+        synchronized (mCaptureTags) {
+            still = mCaptureTags.pollFirst();
         }
+        return still != null ? still.tag : null;
+    }
 
-        // Here, we create a CameraCaptureSession for capturing still images.
+    /**
+     * Forget the tags of stills that were waiting on a session that failed.
+     */
+    private void dropPendingCaptures() {
+        synchronized (mCaptureTags) {
+            for (; mPendingCaptures > 0; mPendingCaptures--) {
+                mCaptureTags.pollLast();
+            }
+        }
+    }
+
+    /**
+     * Create a CameraCaptureSession for capturing still images, unless one is already
+     * being configured.
+     */
+    private void createCaptureSession() {
+        if (mSessionPending) {
+            return;
+        }
         try {
-            mCameraDevice.createCaptureSession(
-                    Collections.singletonList(mImageReader.getSurface()),
+            mSessionPending = true;
+            List<Surface> outputs = new ArrayList<>(2);
+            outputs.add(mImageReader.getSurface());
+            // Per-press sessions only take the still
+            mSessionHasPreview = mPreviewReader != null && isSessionPersistent();
+            if (mSessionHasPreview) {
+                outputs.add(mPreviewReader.getSurface());
+            }
+            mCameraDevice.createCaptureSession(outputs,
                     mSessionCallback,
-                    null);
+                    mBackgroundHandler);
         } catch (CameraAccessException cae) {
+            mSessionPending = false;
+            dropPendingCaptures();
             Log.e(TAG, "access exception while preparing pic", cae);
         }
     }
 
+    /**
+     * Return true if the capture session should outlive a single still.
+     */
+    private boolean isSessionPersistent() {
+        return mWarmSessionEnabled;
+    }
+
+    /**
+     * Start streaming low-resolution frames into the pre-roll ring and the
+     * motion detector.
+     */
+    private void startPreviewStreams() {
+        if (!mSessionHasPreview) {
+            return;
+        }
+        try {
+            CaptureRequest.Builder builder =
+                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            builder.addTarget(mPreviewReader.getSurface());
+            if (mMotionDetector != null) {
+                mMotionDetector.reset();
+            }
+            builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+            mCaptureSession.setRepeatingRequest(builder.build(), null, mBackgroundHandler);
+        } catch (CameraAccessException cae) {
+            Log.e(TAG, "Unable to start preview streams", cae);
+        }
+    }
+
+    /**
+     * Listener feeding sampled preview frames to the motion detector and the
+     * pre-roll ring.
+     */
+    private final ImageReader.OnImageAvailableListener mPreviewFrameListener =
+            new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    Image image = reader.acquireLatestImage();
+                    if (image == null) {
+                        return;
+                    }
+                    long now = SystemClock.elapsedRealtime();
+                    boolean motion = false;
+                    if (mMotionDetector != null
+                            && now - mLastMotionFrameMs >= MOTION_INTERVAL_MS) {
+                        mLastMotionFrameMs = now;
+                        Image.Plane luma = image.getPlanes()[0];
+                        motion = mMotionDetector.process(luma.getBuffer(),
+                                image.getWidth(), image.getHeight(),
+                                luma.getRowStride(), luma.getPixelStride(), now);
+                    }
+                    FrameRingBuffer preRollBuffer = mPreRollBuffer;
+                    if (preRollBuffer != null && now - mLastPreRollFrameMs >= PREROLL_INTERVAL_MS) {
+                        mLastPreRollFrameMs = now;
+                        int length = toNv21(image, mNv21Frame);
+                        preRollBuffer.write(ByteBuffer.wrap(mNv21Frame, 0, length), now);
+                    }
+                    image.close();
+                    if (motion) {
+                        Log.d(TAG, "Motion detected");
+                        mMotionListener.onMotion();
+                    }
+                }
+            };
+
+    /**
+     * Pack a YUV_420_888 image into {@code dst} as NV21: the luma plane followed by
+     * interleaved V and U samples.
+     *
+     * @return number of bytes written.
+     */
+    private static int toNv21(Image image, byte[] dst) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Image.Plane[] planes = image.getPlanes();
+        ByteBuffer y = planes[0].getBuffer();
+        int yRowStride = planes[0].getRowStride();
+        int yPixelStride = planes[0].getPixelStride();
+        int out = 0;
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                dst[out++] = y.get(row * yRowStride + col * yPixelStride);
+            }
+        }
+
+        ByteBuffer u = planes[1].getBuffer();
+        ByteBuffer v = planes[2].getBuffer();
+        int uvRowStride = planes[1].getRowStride();
+        int uvPixelStride = planes[1].getPixelStride();
+        for (int row = 0; row < height / 2; row++) {
+            for (int col = 0; col < width / 2; col++) {
+                int index = row * uvRowStride + col * uvPixelStride;
+                dst[out++] = v.get(index);
+                dst[out++] = u.get(index);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Close the active capture session, if any. The next still rebuilds it.
+     */
+    private void closeCaptureSession() {
+        if (mCaptureSession != null) {
+            mCaptureSession.close();
+            mCaptureSession = null;
+            Log.d(TAG, "CaptureSession closed");
+        }
+    }
+
     /**
      * Callback handling session state changes
      */
@@ -157,19 +750,55 @@ public class DoorbellCamera {
             new CameraCaptureSession.StateCallback() {
                 @Override
                 public void onConfigured(CameraCaptureSession cameraCaptureSession) {
+                    mSessionPending = false;
                     // The camera is already closed
                     if (mCameraDevice == null) {
+                        cameraCaptureSession.close();
                         return;
                     }
 
-                    // When the session is ready, we start capture.
                     mCaptureSession = cameraCaptureSession;
-                    triggerImageCapture();
+                    Log.d(TAG, "Session initialized.");
+                    if (mBootTimeMs != 0) {
+                        mBootToSessionMs = SystemClock.elapsedRealtime() - mBootTimeMs;
+                        mBootTimeMs = 0;
+                        Log.i(TAG, "Boot-to-session-configured " + mBootToSessionMs + "ms");
+                    }
+                    startPreviewStreams();
+                    // When the session is ready, we start any capture that was waiting on it.
+                    for (; mPendingCaptures > 0; mPendingCaptures--) {
+                        triggerImageCapture();
+                    }
+                    applyPendingProfile();
                 }
 
                 @Override
                 public void onConfigureFailed(CameraCaptureSession cameraCaptureSession) {
+                    mSessionPending = false;
+                    if (mSessionHasPreview && mCameraDevice != null) {
+                        // Keep taking stills without pre-roll and motion detection
+                        Log.e(TAG, "Failed to configure camera with the preview stream, "
+                                + "retrying with stills only");
+                        mPreviewReader.close();
+                        mPreviewReader = null;
+                        mPreRollBuffer = null;
+                        createCaptureSession();
+                        return;
+                    }
+                    dropPendingCaptures();
                     Log.e(TAG, "Failed to configure camera");
+                    applyPendingProfile();
+                }
+
+                @Override
+                public void onClosed(CameraCaptureSession cameraCaptureSession) {
+                    if (mCaptureSession == cameraCaptureSession) {
+                        mCaptureSession = null;
+                    }
+                    ImageReader retired = mRetiredImageReaders.remove(cameraCaptureSession);
+                    if (retired != null) {
+                        retired.close();
+                    }
                 }
             };
 
@@ -182,9 +811,12 @@ public class DoorbellCamera {
                     mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
             captureBuilder.addTarget(mImageReader.getSurface());
             captureBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
-            Log.d(TAG, "Session initialized.");
-            mCaptureSession.capture(captureBuilder.build(), mCaptureCallback, null);
+            captureBuilder.set(CaptureRequest.JPEG_QUALITY, (byte) mProfile.jpegQuality);
+            mCaptureSession.capture(captureBuilder.build(), mCaptureCallback, mBackgroundHandler);
         } catch (CameraAccessException cae) {
+            synchronized (mCaptureTags) {
+                mCaptureTags.pollLast();
+            }
             Log.e(TAG, "camera capture exception", cae);
         }
     }
@@ -202,26 +834,107 @@ public class DoorbellCamera {
                     Log.d(TAG, "Partial result");
                 }
 
+                @Override
+                public void onCaptureFailed(CameraCaptureSession session,
+                                            CaptureRequest request,
+                                            CaptureFailure failure) {
+                    Log.w(TAG, "Capture failed, reason " + failure.getReason());
+                    synchronized (mCaptureTags) {
+                        mCaptureTags.pollFirst();
+                    }
+                    applyPendingProfile();
+                }
+
                 @Override
                 public void onCaptureCompleted(CameraCaptureSession session,
                                                CaptureRequest request,
                                                TotalCaptureResult result) {
-                    if (session != null) {
-                        session.close();
-                        mCaptureSession = null;
-                        Log.d(TAG, "CaptureSession closed");
+                    // A warm session stays open for the next press
+                    if (!isSessionPersistent()) {
+                        closeCaptureSession();
                     }
                 }
             };
 
+    /**
+     * Records press-to-frame latency before handing the image to the client listener.
+     */
+    private class LatencyRecordingListener implements ImageReader.OnImageAvailableListener {
+        private final ImageReader.OnImageAvailableListener mDelegate;
+
+        LatencyRecordingListener(ImageReader.OnImageAvailableListener delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            // Stills arrive in the order they were requested
+            long pressTime = 0;
+            synchronized (mCaptureTags) {
+                PendingStill still = mCaptureTags.peekFirst();
+                if (still != null && !still.frameAvailable) {
+                    still.frameAvailable = true;
+                    pressTime = still.pressTimeMs;
+                }
+            }
+            if (pressTime != 0) {
+                long latency = SystemClock.elapsedRealtime() - pressTime;
+                mPressToFrameLatency.record(latency);
+                Log.d(TAG, "Press-to-frame latency " + latency + "ms ("
+                        + (isSessionPersistent() ? "warm" : "per-press") + " session)");
+            }
+            mDelegate.onImageAvailable(reader);
+            // A profile switch may have been waiting for this still
+            applyPendingProfile();
+        }
+    }
+
 
     /**
-     * Close the camera resources
+     * Close the camera resources. The session and device are closed on the camera
+     * background thread, so that thread must be quit safely, after this call.
      */
     public void shutDown() {
-        if (mCameraDevice != null) {
-            mCameraDevice.close();
+        Log.i(TAG, mPressToFrameLatency.toString());
+        Log.i(TAG, "Boot-to-session-configured: " + mBootToSessionMs + "ms, reconnects: "
+                + mReconnects + " " + mRecoveryLatency.summary());
+        mState = State.SHUT_DOWN;
+        if (mBackgroundHandler == null) {
+            return;
         }
+        // A new activity may create readers before this teardown runs
+        final ImageReader imageReader = mImageReader;
+        final ImageReader previewReader = mPreviewReader;
+        mBackgroundHandler.removeCallbacks(mOpenCameraRunnable);
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeCaptureSession();
+                if (mCameraDevice != null) {
+                    mCameraDevice.close();
+                    mCameraDevice = null;
+                }
+                if (imageReader != null) {
+                    imageReader.close();
+                }
+                if (previewReader != null) {
+                    previewReader.close();
+                }
+                // The camera is closed, so no session uses the retired readers any more
+                for (ImageReader retired : mRetiredImageReaders.values()) {
+                    retired.close();
+                }
+                mRetiredImageReaders.clear();
+                FrameRingBuffer preRollBuffer = mPreRollBuffer;
+                if (preRollBuffer != null) {
+                    Log.i(TAG, "Pre-roll frames dropped: " + preRollBuffer.getDroppedFrames());
+                }
+                if (mMotionDetector != null) {
+                    Log.i(TAG, "Motion frames analysed: " + mMotionDetector.getFrameCount()
+                            + " triggers: " + mMotionDetector.getTriggerCount());
+                }
+            }
+        });
     }
 
     /**
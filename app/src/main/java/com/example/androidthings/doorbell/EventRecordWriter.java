@@ -0,0 +1,176 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.gms.tasks.OnFailureListener;
+import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.firebase.database.DatabaseReference;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Coalesces field writes to doorbell events into atomic multi-path updates.
+ * Fields committed within a short window of each other, for any number of events,
+ * are sent as a single {@link DatabaseReference#updateChildren(Map)} call, so readers
+ * see them appear together instead of one by one.
+ *
+ * Fields can be committed from any thread; writes and callbacks happen on the main
+ * thread.
+ */
+public class EventRecordWriter {
+    private static final String TAG = EventRecordWriter.class.getSimpleName();
+
+    /**
+     * Notified on the main thread once an event's fields have been written.
+     */
+    public interface Listener {
+        void onRecorded(String key);
+    }
+
+    /**
+     * Accumulates fields of one event until {@link #commit()}.
+     */
+    public final class Record {
+        private final String mKey;
+        private final Map<String, Object> mFields = new HashMap<>();
+
+        private Record(String key) {
+            mKey = key;
+        }
+
+        /**
+         * @param field child path below the event, e.g. {@code "image"} or
+         *              {@code "preroll/0"}.
+         */
+        public Record set(String field, Object value) {
+            mFields.put(field, value);
+            return this;
+        }
+
+        /**
+         * Queue the fields for the next write.
+         */
+        public void commit() {
+            EventRecordWriter.this.commit(mKey, mFields);
+        }
+    }
+
+    private final DatabaseReference mLogs;
+    private final long mWindowMs;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private Map<String, Object> mPending = new HashMap<>();
+    private Set<String> mPendingKeys = new LinkedHashSet<>();
+    private boolean mFlushScheduled;
+
+    private long mFields;
+    private long mWrites;
+    private long mFailures;
+
+    /**
+     * @param logs parent of the event records.
+     * @param windowMs time to wait for more fields after the first one is committed,
+     *                 or 0 to write on the next main thread turn.
+     */
+    public EventRecordWriter(DatabaseReference logs, long windowMs, Listener listener) {
+        mLogs = logs;
+        mWindowMs = windowMs;
+        mListener = listener;
+    }
+
+    /**
+     * Start a set of fields for an event.
+     */
+    public Record edit(String key) {
+        return new Record(key);
+    }
+
+    private synchronized void commit(String key, Map<String, Object> fields) {
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            mPending.put(key + "/" + field.getKey(), field.getValue());
+        }
+        mPendingKeys.add(key);
+        mFields += fields.size();
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, mWindowMs);
+        }
+    }
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Write all pending fields now. Must be called on the main thread.
+     */
+    public void flush() {
+        final Map<String, Object> update;
+        final List<String> keys;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFlushScheduled = false;
+            if (mPending.isEmpty()) {
+                return;
+            }
+            update = mPending;
+            keys = new ArrayList<>(mPendingKeys);
+            mPending = new HashMap<>();
+            mPendingKeys = new LinkedHashSet<>();
+            mWrites++;
+        }
+
+        mLogs.updateChildren(update).addOnSuccessListener(new OnSuccessListener<Void>() {
+            @Override
+            public void onSuccess(Void aVoid) {
+                for (String key : keys) {
+                    mListener.onRecorded(key);
+                }
+            }
+        }).addOnFailureListener(new OnFailureListener() {
+            @Override
+            public void onFailure(@NonNull Exception e) {
+                Log.e(TAG, "Unable to write " + update.size() + " fields for " + keys, e);
+                synchronized (EventRecordWriter.this) {
+                    mFailures++;
+                }
+            }
+        });
+    }
+
+    /**
+     * Return the number of fields committed against the number of writes sent.
+     */
+    public synchronized String getMetricsSummary() {
+        return "EventRecordWriter: fields=" + mFields
+                + " writes=" + mWrites
+                + " failures=" + mFailures;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference-counted image buffer shared by the camera, uploader and annotator.
+ * Each consumer calls {@link #retain()} before holding on to the buffer and
+ * {@link #release()} when done; the last release returns it to its pool.
+ */
+public class FrameBuffer {
+
+    private final byte[] mData;
+    private final FrameBufferPool mPool;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+    private int mLength;
+
+    FrameBuffer(int capacity, FrameBufferPool pool) {
+        mData = new byte[capacity];
+        mPool = pool;
+    }
+
+    /**
+     * Return the backing array. Only the first {@link #getLength()} bytes are valid.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public void setLength(int length) {
+        mLength = length;
+    }
+
+    public int getCapacity() {
+        return mData.length;
+    }
+
+    /**
+     * Return a stream over the valid bytes, without copying them.
+     */
+    public InputStream openStream() {
+        return new ByteArrayInputStream(mData, 0, mLength);
+    }
+
+    /**
+     * Return a copy of the valid bytes, for consumers that need an exact-length array.
+     */
+    public byte[] toByteArray() {
+        byte[] copy = new byte[mLength];
+        System.arraycopy(mData, 0, copy, 0, mLength);
+        return copy;
+    }
+
+    /**
+     * Take an additional reference to this buffer.
+     */
+    public FrameBuffer retain() {
+        if (mRefCount.getAndIncrement() <= 0) {
+            throw new IllegalStateException("retain() on a released FrameBuffer");
+        }
+        return this;
+    }
+
+    /**
+     * Drop a reference, returning the buffer to the pool when none remain.
+     * Buffers created outside a pool are simply left to the garbage collector.
+     */
+    public void release() {
+        int remaining = mRefCount.decrementAndGet();
+        if (remaining == 0) {
+            if (mPool != null) {
+                mPool.recycle(this);
+            }
+        } else if (remaining < 0) {
+            throw new IllegalStateException("FrameBuffer released too many times");
+        }
+    }
+
+    void onAcquired() {
+        mLength = 0;
+        mRefCount.set(1);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of {@link FrameBuffer} instances of a fixed capacity. Buffers are created on
+ * demand and kept for reuse up to {@code maxPooled}; requests larger than the pool
+ * capacity get a one-off buffer that is dropped on release.
+ */
+public class FrameBufferPool {
+
+    private final int mBufferCapacity;
+    private final int mMaxPooled;
+    private final ArrayDeque<FrameBuffer> mFree;
+
+    private long mAllocations;
+    private long mReuses;
+    private long mOversized;
+
+    public FrameBufferPool(int bufferCapacity, int maxPooled) {
+        mBufferCapacity = bufferCapacity;
+        mMaxPooled = maxPooled;
+        mFree = new ArrayDeque<>(maxPooled);
+    }
+
+    /**
+     * Return a buffer able to hold at least {@code size} bytes, holding one reference.
+     */
+    public synchronized FrameBuffer acquire(int size) {
+        FrameBuffer buffer;
+        if (size > mBufferCapacity) {
+            mOversized++;
+            buffer = new FrameBuffer(size, null);
+        } else if (!mFree.isEmpty()) {
+            mReuses++;
+            buffer = mFree.pop();
+        } else {
+            mAllocations++;
+            buffer = new FrameBuffer(mBufferCapacity, this);
+        }
+        buffer.onAcquired();
+        return buffer;
+    }
+
+    synchronized void recycle(FrameBuffer buffer) {
+        if (mFree.size() < mMaxPooled) {
+            mFree.push(buffer);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FrameBufferPool: capacity=" + mBufferCapacity
+                + " allocations=" + mAllocations
+                + " reuses=" + mReuses
+                + " oversized=" + mOversized
+                + " free=" + mFree.size();
+    }
+}
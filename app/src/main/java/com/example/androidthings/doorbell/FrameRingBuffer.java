@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed-size ring of recently captured frames. All slots are allocated up front, so the
+ * memory used is capped at {@code slotCount * slotCapacity} bytes and writing a frame
+ * never allocates. Frames larger than a slot are dropped.
+ */
+public class FrameRingBuffer {
+
+    private final byte[][] mSlots;
+    private final int[] mLengths;
+    private final long[] mTimestamps;
+
+    // Index of the slot that will be written next.
+    private int mHead;
+    // Number of valid frames in the ring.
+    private int mSize;
+    private long mDroppedFrames;
+
+    /**
+     * @param slotCount number of frames kept.
+     * @param slotCapacity maximum size in bytes of a single frame.
+     */
+    public FrameRingBuffer(int slotCount, int slotCapacity) {
+        mSlots = new byte[slotCount][slotCapacity];
+        mLengths = new int[slotCount];
+        mTimestamps = new long[slotCount];
+    }
+
+    /**
+     * Copy the remaining bytes of the buffer into the next slot, overwriting the oldest
+     * frame once the ring is full.
+     *
+     * @return false if the frame did not fit in a slot and was dropped.
+     */
+    public synchronized boolean write(ByteBuffer frame, long timestampMs) {
+        int length = frame.remaining();
+        byte[] slot = mSlots[mHead];
+        if (length > slot.length) {
+            mDroppedFrames++;
+            return false;
+        }
+        frame.get(slot, 0, length);
+        mLengths[mHead] = length;
+        mTimestamps[mHead] = timestampMs;
+        mHead = (mHead + 1) % mSlots.length;
+        if (mSize < mSlots.length) {
+            mSize++;
+        }
+        return true;
+    }
+
+    /**
+     * Copy out up to {@code maxFrames} of the most recent frames captured at or after
+     * {@code sinceMs}, oldest first.
+     */
+    public synchronized List<byte[]> snapshot(int maxFrames, long sinceMs) {
+        int count = Math.min(maxFrames, mSize);
+        List<byte[]> frames = new ArrayList<>(count);
+        int start = (mHead - count + mSlots.length) % mSlots.length;
+        for (int i = 0; i < count; i++) {
+            int index = (start + i) % mSlots.length;
+            if (mTimestamps[index] < sinceMs) {
+                continue;
+            }
+            byte[] copy = new byte[mLengths[index]];
+            System.arraycopy(mSlots[index], 0, copy, 0, copy.length);
+            frames.add(copy);
+        }
+        return frames;
+    }
+
+    public synchronized void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    public synchronized long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Return the fixed number of bytes held by this ring.
+     */
+    public int getMemoryCap() {
+        return mSlots.length * mSlots[0].length;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Annotation descriptions and scores for one image, with the name of the
+ * {@link ImageAnnotator} that produced them.
+ */
+public class ImageAnnotations {
+
+    private final String mAnnotator;
+    private final Map<String, Float> mScores;
+
+    public ImageAnnotations(String annotator, Map<String, Float> scores) {
+        mAnnotator = annotator;
+        mScores = scores;
+    }
+
+    /**
+     * Wrap each image's scores, all produced by the same annotator.
+     */
+    public static List<ImageAnnotations> of(String annotator, List<Map<String, Float>> scores) {
+        List<ImageAnnotations> results = new ArrayList<>(scores.size());
+        for (Map<String, Float> imageScores : scores) {
+            results.add(imageScores == null ? null : new ImageAnnotations(annotator, imageScores));
+        }
+        return results;
+    }
+
+    public String getAnnotator() {
+        return mAnnotator;
+    }
+
+    public Map<String, Float> getScores() {
+        return mScores;
+    }
+
+    @Override
+    public String toString() {
+        return mAnnotator + mScores;
+    }
+}
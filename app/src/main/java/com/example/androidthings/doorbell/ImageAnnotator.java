@@ -0,0 +1,39 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Produces scored annotations, such as labels, for captured images.
+ */
+public interface ImageAnnotator {
+
+    /**
+     * Annotate each image.
+     *
+     * @param frames image buffers in JPEG format.
+     * @return annotations for each image, in the same order as the input, or null
+     *         for images that could not be annotated.
+     */
+    List<ImageAnnotations> annotate(List<FrameBuffer> frames) throws IOException;
+
+    /**
+     * Return a short name identifying this implementation in logs and metrics.
+     */
+    String getName();
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rolling on-device archive of captured stills, so images can be reviewed without
+ * the cloud copy.
+ *
+ * Images are appended to segment data files. Each segment has a fixed-size index
+ * file, memory-mapped, holding a count followed by one
+ * {@code timestamp | key | dataOffset | dataLength} entry per image in append order.
+ * Stored timestamps never decrease, so lookups by time binary search the segments and
+ * then the mapped index. Push keys come from the wall clock and need not be in order,
+ * so lookups by key use a map built from the indexes on open. Each append syncs the
+ * image data and then its index entry, so the index never refers to unwritten data.
+ * When the data files exceed the size limit, the oldest segments are deleted.
+ *
+ * The archive has no platform dependencies.
+ */
+public class ImageArchive {
+
+    private static final String DATA_SUFFIX = ".dat";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    // Push keys are 20 characters; shorter keys are zero padded.
+    private static final int KEY_SIZE = 20;
+    private static final int COUNT_SIZE = 4;
+    private static final int ENTRY_SIZE = 8 + KEY_SIZE + 8 + 4;
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * An archived image.
+     */
+    public static final class Entry {
+        final Segment segment;
+        final long dataOffset;
+        public final String key;
+        public final long timestamp;
+        public final int dataLength;
+
+        Entry(Segment segment, long dataOffset, String key, long timestamp, int dataLength) {
+            this.segment = segment;
+            this.dataOffset = dataOffset;
+            this.key = key;
+            this.timestamp = timestamp;
+            this.dataLength = dataLength;
+        }
+    }
+
+    /**
+     * A data file and its mapped index.
+     */
+    private static final class Segment {
+        final long sequence;
+        final File dataFile;
+        final File indexFile;
+        final FileChannel data;
+        final MappedByteBuffer index;
+        int count;
+
+        Segment(File directory, long sequence, int maxEntries) throws IOException {
+            this.sequence = sequence;
+            String name = String.format("%016d", sequence);
+            dataFile = new File(directory, name + DATA_SUFFIX);
+            indexFile = new File(directory, name + INDEX_SUFFIX);
+            data = new RandomAccessFile(dataFile, "rw").getChannel();
+            RandomAccessFile indexRaf = new RandomAccessFile(indexFile, "rw");
+            try {
+                index = indexRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                        COUNT_SIZE + (long) maxEntries * ENTRY_SIZE);
+            } finally {
+                // The mapping stays valid after the channel is closed
+                indexRaf.close();
+            }
+            count = Math.max(0, Math.min(index.getInt(0), maxEntries));
+        }
+
+        long timestampAt(int i) {
+            return index.getLong(COUNT_SIZE + i * ENTRY_SIZE);
+        }
+
+        long endOffset() {
+            if (count == 0) {
+                return 0;
+            }
+            int base = COUNT_SIZE + (count - 1) * ENTRY_SIZE + 8 + KEY_SIZE;
+            return index.getLong(base) + index.getInt(base + 8);
+        }
+
+        Entry entryAt(int i) {
+            int base = COUNT_SIZE + i * ENTRY_SIZE;
+            long timestamp = index.getLong(base);
+            byte[] key = new byte[KEY_SIZE];
+            for (int b = 0; b < KEY_SIZE; b++) {
+                key[b] = index.get(base + 8 + b);
+            }
+            int keyLength = KEY_SIZE;
+            while (keyLength > 0 && key[keyLength - 1] == 0) {
+                keyLength--;
+            }
+            return new Entry(this, index.getLong(base + 8 + KEY_SIZE),
+                    new String(key, 0, keyLength, US_ASCII), timestamp,
+                    index.getInt(base + 8 + KEY_SIZE + 8));
+        }
+
+        void close() throws IOException {
+            data.close();
+        }
+
+        void delete() throws IOException {
+            close();
+            dataFile.delete();
+            indexFile.delete();
+        }
+    }
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private final long mSegmentBytes;
+    private final int mSegmentEntries;
+
+    // Oldest first; the last segment receives new images.
+    private final List<Segment> mSegments = new ArrayList<>();
+    private long mBytes;
+    private long mLastTimestamp;
+    private final Map<String, Entry> mEntriesByKey = new HashMap<>();
+
+    private final ByteBuffer mEntryScratch = ByteBuffer.allocate(ENTRY_SIZE);
+
+    private final LatencyHistogram mWriteLatency = new LatencyHistogram("archive-write");
+    private final LatencyHistogram mLookupLatency = new LatencyHistogram("archive-lookup");
+    private long mWrites;
+    private long mLookups;
+    private long mDeletedSegments;
+
+    /**
+     * Open the archive in the given directory, keeping any images already there.
+     *
+     * @param maxBytes total size of image data kept; the oldest segments are deleted
+     *                 beyond this.
+     * @param segmentBytes data size at which a new segment is started.
+     * @param segmentEntries number of images at which a new segment is started.
+     */
+    public ImageArchive(File directory, long maxBytes, long segmentBytes, int segmentEntries)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create archive directory " + directory);
+        }
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        mSegmentBytes = segmentBytes;
+        mSegmentEntries = segmentEntries;
+
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(INDEX_SUFFIX);
+            }
+        });
+        Arrays.sort(names);
+        for (String name : names) {
+            long sequence = Long.parseLong(
+                    name.substring(0, name.length() - INDEX_SUFFIX.length()));
+            Segment segment = new Segment(directory, sequence, segmentEntries);
+            // Drop data written after the last indexed image
+            segment.data.truncate(segment.endOffset());
+            mSegments.add(segment);
+            mBytes += segment.data.size();
+            for (int i = 0; i < segment.count; i++) {
+                Entry entry = segment.entryAt(i);
+                mEntriesByKey.put(entry.key, entry);
+            }
+            if (segment.count > 0) {
+                mLastTimestamp = segment.timestampAt(segment.count - 1);
+            }
+        }
+    }
+
+    /**
+     * Add an image. Timestamps are expected to increase; an earlier timestamp is
+     * stored as the latest one so the index stays ordered.
+     *
+     * @param key the event's push key, at most 20 ASCII characters.
+     */
+    public synchronized Entry append(String key, long timestamp, FrameBuffer frame)
+            throws IOException {
+        long start = System.nanoTime();
+        byte[] keyBytes = key.getBytes(US_ASCII);
+        if (keyBytes.length > KEY_SIZE) {
+            throw new IllegalArgumentException("Key too long: " + key);
+        }
+        timestamp = Math.max(timestamp, mLastTimestamp);
+
+        Segment segment = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        if (segment == null || segment.count >= mSegmentEntries
+                || segment.data.size() + frame.getLength() > mSegmentBytes) {
+            segment = new Segment(mDirectory,
+                    segment == null ? 0 : segment.sequence + 1, mSegmentEntries);
+            mSegments.add(segment);
+        }
+
+        long offset = segment.data.size();
+        ByteBuffer src = ByteBuffer.wrap(frame.getData(), 0, frame.getLength());
+        while (src.hasRemaining()) {
+            segment.data.write(src, offset + src.position());
+        }
+        segment.data.force(false);
+
+        // Write the entry before publishing it in the count
+        mEntryScratch.clear();
+        mEntryScratch.putLong(timestamp).put(keyBytes);
+        for (int b = keyBytes.length; b < KEY_SIZE; b++) {
+            mEntryScratch.put((byte) 0);
+        }
+        mEntryScratch.putLong(offset).putInt(frame.getLength());
+        mEntryScratch.flip();
+        segment.index.position(COUNT_SIZE + segment.count * ENTRY_SIZE);
+        segment.index.put(mEntryScratch);
+        segment.count++;
+        segment.index.putInt(0, segment.count);
+        segment.index.force();
+
+        Entry entry = new Entry(segment, offset, key, timestamp, frame.getLength());
+        mEntriesByKey.put(key, entry);
+        mBytes += frame.getLength();
+        mLastTimestamp = timestamp;
+        enforceRetention();
+        mWrites++;
+        mWriteLatency.record((System.nanoTime() - start) / 1000000);
+        return entry;
+    }
+
+    private void enforceRetention() throws IOException {
+        while (mBytes > mMaxBytes && mSegments.size() > 1) {
+            Segment oldest = mSegments.remove(0);
+            mBytes -= oldest.data.size();
+            for (Iterator<Entry> it = mEntriesByKey.values().iterator(); it.hasNext(); ) {
+                if (it.next().segment == oldest) {
+                    it.remove();
+                }
+            }
+            oldest.delete();
+            mDeletedSegments++;
+        }
+    }
+
+    /**
+     * Return the first image taken at or after the given time, or null if none.
+     */
+    public synchronized Entry findByTimestamp(long timestamp) {
+        long start = System.nanoTime();
+        Entry entry = null;
+        int lo = 0;
+        int hi = mSegments.size();
+        // Find the first segment whose last image is not older than the timestamp
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            Segment segment = mSegments.get(mid);
+            if (segment.count == 0 || segment.timestampAt(segment.count - 1) < timestamp) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo < mSegments.size()) {
+            Segment segment = mSegments.get(lo);
+            int first = 0;
+            int last = segment.count;
+            while (first < last) {
+                int mid = (first + last) >>> 1;
+                if (segment.timestampAt(mid) < timestamp) {
+                    first = mid + 1;
+                } else {
+                    last = mid;
+                }
+            }
+            entry = segment.entryAt(first);
+        }
+        recordLookup(start);
+        return entry;
+    }
+
+    /**
+     * Return the image archived under the given push key, or null if none.
+     */
+    public synchronized Entry findByKey(String key) {
+        long start = System.nanoTime();
+        Entry entry = mEntriesByKey.get(key);
+        recordLookup(start);
+        return entry;
+    }
+
+    private void recordLookup(long startNanos) {
+        mLookups++;
+        mLookupLatency.record((System.nanoTime() - startNanos) / 1000000);
+    }
+
+    /**
+     * Read an archived image into a pooled buffer.
+     *
+     * @throws IOException if the image has been removed by retention.
+     */
+    public FrameBuffer read(Entry entry, FrameBufferPool pool) throws IOException {
+        synchronized (this) {
+            if (!mSegments.contains(entry.segment)) {
+                throw new IOException("Image " + entry.key + " is no longer archived");
+            }
+        }
+        FrameBuffer frame = pool.acquire(entry.dataLength);
+        ByteBuffer dst = ByteBuffer.wrap(frame.getData(), 0, entry.dataLength);
+        try {
+            while (dst.hasRemaining()) {
+                int read = entry.segment.data.read(dst, entry.dataOffset + dst.position());
+                if (read < 0) {
+                    throw new IOException("Archive segment truncated");
+                }
+            }
+        } catch (IOException e) {
+            frame.release();
+            throw e;
+        }
+        frame.setLength(entry.dataLength);
+        return frame;
+    }
+
+    public synchronized void close() throws IOException {
+        for (Segment segment : mSegments) {
+            segment.index.force();
+            segment.close();
+        }
+    }
+
+    /**
+     * Return a summary of archive size and write and lookup counts.
+     */
+    public synchronized String getMetricsSummary() {
+        int images = 0;
+        for (Segment segment : mSegments) {
+            images += segment.count;
+        }
+        return "ImageArchive: images=" + images
+                + " bytes=" + mBytes
+                + " segments=" + mSegments.size()
+                + " deletedSegments=" + mDeletedSegments
+                + " writes=" + mWrites
+                + " lookups=" + mLookups
+                + "\n" + mWriteLatency.summary()
+                + "\n" + mLookupLatency.summary();
+    }
+}
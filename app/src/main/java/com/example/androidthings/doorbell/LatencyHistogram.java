@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+/**
+ * Fixed-bucket latency histogram. Recording never allocates, so it is safe to call
+ * from camera and network callbacks.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Inclusive upper bound of each bucket, in milliseconds. The last bucket
+     * collects everything slower than the largest bound.
+     */
+    private static final long[] BUCKET_BOUNDS_MS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000
+    };
+
+    private final String mName;
+    private final long[] mCounts = new long[BUCKET_BOUNDS_MS.length + 1];
+    private long mTotal;
+    private long mSumMs;
+    private long mMaxMs;
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    /**
+     * Record a single sample.
+     *
+     * @param latencyMs elapsed time in milliseconds.
+     */
+    public synchronized void record(long latencyMs) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MS.length && latencyMs > BUCKET_BOUNDS_MS[bucket]) {
+            bucket++;
+        }
+        mCounts[bucket]++;
+        mTotal++;
+        mSumMs += latencyMs;
+        if (latencyMs > mMaxMs) {
+            mMaxMs = latencyMs;
+        }
+    }
+
+    public synchronized long getCount() {
+        return mTotal;
+    }
+
+    /**
+     * Return the upper bound of the bucket holding the requested percentile,
+     * or the observed maximum if it falls in the overflow bucket.
+     *
+     * @param percentile value between 0 and 100.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mTotal == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(mTotal * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= rank && mCounts[i] > 0) {
+                return i < BUCKET_BOUNDS_MS.length ? Math.min(BUCKET_BOUNDS_MS[i], mMaxMs) : mMaxMs;
+            }
+        }
+        return mMaxMs;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+        mTotal = 0;
+        mSumMs = 0;
+        mMaxMs = 0;
+    }
+
+    /**
+     * Return a one-line summary suitable for logging.
+     */
+    public synchronized String summary() {
+        if (mTotal == 0) {
+            return mName + ": no samples";
+        }
+        return mName + ": n=" + mTotal
+                + " mean=" + (mSumMs / mTotal) + "ms"
+                + " p50<=" + getPercentile(50) + "ms"
+                + " p90<=" + getPercentile(90) + "ms"
+                + " p99<=" + getPercentile(99) + "ms"
+                + " max=" + mMaxMs + "ms";
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder(summary());
+        for (int i = 0; i < mCounts.length; i++) {
+            if (mCounts[i] == 0) {
+                continue;
+            }
+            sb.append("\n\t");
+            if (i < BUCKET_BOUNDS_MS.length) {
+                sb.append("<=").append(BUCKET_BOUNDS_MS[i]).append("ms");
+            } else {
+                sb.append(">").append(BUCKET_BOUNDS_MS[BUCKET_BOUNDS_MS.length - 1]).append("ms");
+            }
+            sb.append(": ").append(mCounts[i]);
+        }
+        return sb.toString();
+    }
+}
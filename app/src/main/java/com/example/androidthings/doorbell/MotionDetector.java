@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Detects motion by comparing consecutive luma frames. Each frame is reduced to a
+ * small grid of average brightness values and compared cell by cell with the previous
+ * frame; motion is reported when enough cells changed by more than a threshold.
+ *
+ * The grids are allocated up front and frames are read in place, so processing a
+ * frame does not allocate. The detector has no platform dependencies and can be fed
+ * recorded frames. Not thread-safe.
+ */
+public class MotionDetector {
+
+    private final int mGridWidth;
+    private final int mGridHeight;
+    private final int mCellThreshold;
+    private final float mSensitivity;
+    private final long mCooldownMs;
+
+    private int[] mCurrent;
+    private int[] mPrevious;
+    private boolean mHasPrevious;
+    private long mLastTriggerMs = Long.MIN_VALUE / 2;
+
+    private long mFrames;
+    private long mTriggers;
+
+    /**
+     * @param gridWidth number of grid columns each frame is reduced to.
+     * @param gridHeight number of grid rows each frame is reduced to.
+     * @param cellThreshold change in a cell's mean luma (0-255) that counts as motion.
+     * @param sensitivity fraction of cells (0-1) that must change to report motion.
+     * @param cooldownMs minimum time between two reports.
+     */
+    public MotionDetector(int gridWidth, int gridHeight, int cellThreshold,
+                          float sensitivity, long cooldownMs) {
+        mGridWidth = gridWidth;
+        mGridHeight = gridHeight;
+        mCellThreshold = cellThreshold;
+        mSensitivity = sensitivity;
+        mCooldownMs = cooldownMs;
+        mCurrent = new int[gridWidth * gridHeight];
+        mPrevious = new int[gridWidth * gridHeight];
+    }
+
+    /**
+     * Process one luma plane.
+     *
+     * @param luma Y plane, read with absolute gets so its position is unchanged.
+     * @param rowStride bytes between the start of consecutive rows.
+     * @param pixelStride bytes between consecutive pixels in a row.
+     * @param timestampMs monotonic time of the frame.
+     * @return true if motion was detected and the cooldown has elapsed.
+     */
+    public boolean process(ByteBuffer luma, int width, int height, int rowStride,
+                           int pixelStride, long timestampMs) {
+        mFrames++;
+        downsample(luma, width, height, rowStride, pixelStride);
+
+        boolean triggered = false;
+        if (mHasPrevious) {
+            int changed = 0;
+            for (int i = 0; i < mCurrent.length; i++) {
+                if (Math.abs(mCurrent[i] - mPrevious[i]) > mCellThreshold) {
+                    changed++;
+                }
+            }
+            if (changed >= mSensitivity * mCurrent.length
+                    && timestampMs - mLastTriggerMs >= mCooldownMs) {
+                mLastTriggerMs = timestampMs;
+                mTriggers++;
+                triggered = true;
+            }
+        }
+
+        int[] swap = mPrevious;
+        mPrevious = mCurrent;
+        mCurrent = swap;
+        mHasPrevious = true;
+        return triggered;
+    }
+
+    /**
+     * Reduce the frame to the grid, averaging a sparse sample of each cell.
+     */
+    private void downsample(ByteBuffer luma, int width, int height, int rowStride,
+                            int pixelStride) {
+        int cellWidth = Math.max(1, width / mGridWidth);
+        int cellHeight = Math.max(1, height / mGridHeight);
+        // A sparse sample of each cell is enough to estimate its mean
+        int step = Math.max(1, Math.min(cellWidth, cellHeight) / 4);
+        for (int gy = 0; gy < mGridHeight; gy++) {
+            int y0 = gy * cellHeight;
+            for (int gx = 0; gx < mGridWidth; gx++) {
+                int x0 = gx * cellWidth;
+                int sum = 0;
+                int count = 0;
+                for (int y = y0; y < y0 + cellHeight && y < height; y += step) {
+                    int rowOffset = y * rowStride;
+                    for (int x = x0; x < x0 + cellWidth && x < width; x += step) {
+                        sum += luma.get(rowOffset + x * pixelStride) & 0xFF;
+                        count++;
+                    }
+                }
+                mCurrent[gy * mGridWidth + gx] = count == 0 ? 0 : sum / count;
+            }
+        }
+    }
+
+    /**
+     * Forget the previous frame, e.g. after the stream was interrupted.
+     */
+    public void reset() {
+        mHasPrevious = false;
+    }
+
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    public long getTriggerCount() {
+        return mTriggers;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+
+/**
+ * Finds stills that look like a recent one, using a 64-bit difference hash (dHash)
+ * of a 9x8 luma thumbnail. Two stills are near-duplicates when their hashes differ
+ * in at most a threshold number of bits and the earlier one is recent enough.
+ *
+ * Recent hashes are kept in fixed primitive arrays and the least recently matched
+ * entry is replaced when the index is full.
+ */
+public class NearDuplicateIndex {
+
+    private static final int HASH_WIDTH = 9;
+    private static final int HASH_HEIGHT = 8;
+    // Stills are decoded at no less than this width before being scaled to the hash.
+    private static final int MIN_DECODE_WIDTH = 32;
+
+    private final int mThreshold;
+    private final long mMaxAgeMs;
+
+    private final long[] mHashes;
+    private final String[] mKeys;
+    private final long[] mCapturedAtMs;
+    private final long[] mLastUsed;
+    private int mSize;
+    private long mClock;
+
+    private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+    private final int[] mPixels = new int[HASH_WIDTH * HASH_HEIGHT];
+    private final int[] mLuma = new int[HASH_WIDTH * HASH_HEIGHT];
+
+    private final LatencyHistogram mHashLatency = new LatencyHistogram("dhash");
+    private long mLookups;
+    private long mDuplicates;
+    private long mSavedBytes;
+
+    /**
+     * @param capacity number of recent hashes kept.
+     * @param threshold maximum Hamming distance (0-64) between near-duplicates.
+     * @param maxAgeMs stills older than this are never matched.
+     */
+    public NearDuplicateIndex(int capacity, int threshold, long maxAgeMs) {
+        mThreshold = threshold;
+        mMaxAgeMs = maxAgeMs;
+        mHashes = new long[capacity];
+        mKeys = new String[capacity];
+        mCapturedAtMs = new long[capacity];
+        mLastUsed = new long[capacity];
+    }
+
+    /**
+     * Look up a still, and index it if it is not a near-duplicate.
+     *
+     * @param key push key of the still's event.
+     * @param nowMs monotonic capture time.
+     * @return key of the recent event the still duplicates, or null if it is new or
+     *         could not be decoded.
+     */
+    public synchronized String check(String key, FrameBuffer frame, long nowMs) {
+        long start = SystemClock.elapsedRealtime();
+        if (!decodeThumbnail(frame)) {
+            return null;
+        }
+        toLuma(mPixels, mLuma);
+        long hash = dHash(mLuma);
+        mHashLatency.record(SystemClock.elapsedRealtime() - start);
+        return check(key, hash, nowMs);
+    }
+
+    /**
+     * Look up a still by its dHash, and index it if it is not a near-duplicate.
+     *
+     * @return key of the recent event the still duplicates, or null if it is new.
+     */
+    synchronized String check(String key, long hash, long nowMs) {
+        mLookups++;
+
+        int best = -1;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < mSize; i++) {
+            if (nowMs - mCapturedAtMs[i] > mMaxAgeMs) {
+                continue;
+            }
+            int distance = Long.bitCount(mHashes[i] ^ hash);
+            if (distance < bestDistance) {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        if (best >= 0 && bestDistance <= mThreshold) {
+            mLastUsed[best] = ++mClock;
+            mDuplicates++;
+            return mKeys[best];
+        }
+
+        int slot = mSize < mHashes.length ? mSize++ : leastRecentlyUsed();
+        mHashes[slot] = hash;
+        mKeys[slot] = key;
+        mCapturedAtMs[slot] = nowMs;
+        mLastUsed[slot] = ++mClock;
+        return null;
+    }
+
+    /**
+     * Count bytes not uploaded because a still was a near-duplicate.
+     */
+    public synchronized void addSavedBytes(long bytes) {
+        mSavedBytes += bytes;
+    }
+
+    /**
+     * Decode the still into the 9x8 ARGB thumbnail.
+     */
+    private boolean decodeThumbnail(FrameBuffer frame) {
+        mOptions.inJustDecodeBounds = true;
+        mOptions.inSampleSize = 1;
+        BitmapFactory.decodeByteArray(frame.getData(), 0, frame.getLength(), mOptions);
+        int sampleSize = 1;
+        while (mOptions.outWidth / (sampleSize * 2) >= MIN_DECODE_WIDTH) {
+            sampleSize *= 2;
+        }
+        mOptions.inJustDecodeBounds = false;
+        mOptions.inSampleSize = sampleSize;
+        Bitmap decoded = BitmapFactory.decodeByteArray(frame.getData(), 0, frame.getLength(),
+                mOptions);
+        if (decoded == null) {
+            return false;
+        }
+        Bitmap thumbnail = Bitmap.createScaledBitmap(decoded, HASH_WIDTH, HASH_HEIGHT, true);
+        thumbnail.getPixels(mPixels, 0, HASH_WIDTH, 0, 0, HASH_WIDTH, HASH_HEIGHT);
+        if (thumbnail != decoded) {
+            thumbnail.recycle();
+        }
+        decoded.recycle();
+        return true;
+    }
+
+    /**
+     * Convert ARGB pixels to luma with the Rec. 601 weights.
+     */
+    static void toLuma(int[] pixels, int[] luma) {
+        for (int i = 0; i < pixels.length; i++) {
+            int pixel = pixels[i];
+            luma[i] = (((pixel >> 16) & 0xFF) * 299 + ((pixel >> 8) & 0xFF) * 587
+                    + (pixel & 0xFF) * 114) / 1000;
+        }
+    }
+
+    /**
+     * Hash a 9x8 luma thumbnail, setting one bit per pair of horizontally adjacent
+     * pixels that gets darker. The first row's first pair is the most significant bit.
+     */
+    static long dHash(int[] luma) {
+        long hash = 0;
+        for (int y = 0; y < HASH_HEIGHT; y++) {
+            int row = y * HASH_WIDTH;
+            for (int x = 0; x < HASH_WIDTH - 1; x++) {
+                hash <<= 1;
+                if (luma[row + x] > luma[row + x + 1]) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    private int leastRecentlyUsed() {
+        int oldest = 0;
+        for (int i = 1; i < mSize; i++) {
+            if (mLastUsed[i] < mLastUsed[oldest]) {
+                oldest = i;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Return a summary of lookups, duplicates found and what they saved.
+     */
+    public synchronized String getMetricsSummary() {
+        return "NearDuplicateIndex: lookups=" + mLookups
+                + " duplicates=" + mDuplicates
+                + " savedVisionCalls=" + mDuplicates
+                + " savedBytes=" + mSavedBytes
+                + "\n" + mHashLatency.summary();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Keys of events whose images should be annotated again by the preferred annotator:
+ * events labelled by an on-device fallback, events whose annotation failed or was
+ * shed, and events recovered from the upload spool after a restart.
+ *
+ * The queue is bounded; when it is full the oldest key is forgotten. Thread-safe.
+ */
+public class ReannotationQueue {
+
+    private final int mCapacity;
+    // Iterates oldest first.
+    private final LinkedHashSet<String> mKeys = new LinkedHashSet<>();
+
+    private long mAdded;
+    private long mTaken;
+    private long mForgotten;
+
+    /**
+     * @param capacity number of keys kept.
+     */
+    public ReannotationQueue(int capacity) {
+        mCapacity = capacity;
+    }
+
+    /**
+     * Queue an event, keeping its place if it is already queued.
+     */
+    public synchronized void add(String key) {
+        if (!mKeys.add(key)) {
+            return;
+        }
+        mAdded++;
+        if (mKeys.size() > mCapacity) {
+            Iterator<String> it = mKeys.iterator();
+            it.next();
+            it.remove();
+            mForgotten++;
+        }
+    }
+
+    /**
+     * Forget an event, e.g. once the preferred annotator has labelled it.
+     */
+    public synchronized void remove(String key) {
+        mKeys.remove(key);
+    }
+
+    /**
+     * Remove and return up to {@code max} keys, oldest first.
+     */
+    public synchronized List<String> take(int max) {
+        List<String> keys = new ArrayList<>(Math.min(max, mKeys.size()));
+        Iterator<String> it = mKeys.iterator();
+        while (keys.size() < max && it.hasNext()) {
+            keys.add(it.next());
+            it.remove();
+        }
+        mTaken += keys.size();
+        return keys;
+    }
+
+    public synchronized int size() {
+        return mKeys.size();
+    }
+
+    /**
+     * Return how many events were queued, handed out and forgotten.
+     */
+    public synchronized String getMetricsSummary() {
+        return "ReannotationQueue: added=" + mAdded
+                + " taken=" + mTaken
+                + " forgotten=" + mForgotten
+                + " pending=" + mKeys.size();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+/**
+ * Merges button presses that arrive within a fixed window of the first press into
+ * a single ring. Time is passed in by the caller, so the coalescer has no platform
+ * dependencies and can be driven by a simulated key-event stream.
+ *
+ * Not thread-safe: call from a single thread.
+ */
+public class RingCoalescer {
+
+    /**
+     * Receives ring events, synchronously from {@link #onPress(long)} and
+     * {@link #closeExpired(long)}.
+     */
+    public interface Listener {
+        /**
+         * A new ring started; capture its still.
+         */
+        void onRing();
+
+        /**
+         * The ring closed after further presses; capture one more frame.
+         * Only called when extra frames are enabled.
+         */
+        void onExtraFrame();
+
+        /**
+         * The ring's window elapsed.
+         *
+         * @param suppressedPresses presses merged into the ring after the first.
+         */
+        void onRingClosed(int suppressedPresses);
+    }
+
+    private final long mWindowMs;
+    private final boolean mExtraFrame;
+    private final Listener mListener;
+
+    private boolean mOpen;
+    private long mStartMs;
+    private int mSuppressed;
+
+    private long mRings;
+    private long mSuppressedTotal;
+
+    /**
+     * @param windowMs presses within this time of a ring's first press are merged.
+     * @param extraFrame whether a ring with merged presses captures one more frame.
+     */
+    public RingCoalescer(long windowMs, boolean extraFrame, Listener listener) {
+        mWindowMs = windowMs;
+        mExtraFrame = extraFrame;
+        mListener = listener;
+    }
+
+    /**
+     * Handle a button press.
+     *
+     * @param nowMs monotonic time of the press.
+     * @return true if the press started a new ring.
+     */
+    public boolean onPress(long nowMs) {
+        return onPress(nowMs, true);
+    }
+
+    /**
+     * Handle a press or another trigger, such as detected motion, that rings the bell.
+     *
+     * @param nowMs monotonic time of the trigger.
+     * @param buttonPress whether a merged trigger counts as a suppressed press.
+     * @return true if the trigger started a new ring.
+     */
+    public boolean onPress(long nowMs, boolean buttonPress) {
+        if (mOpen && nowMs - mStartMs < mWindowMs) {
+            if (buttonPress) {
+                mSuppressed++;
+                mSuppressedTotal++;
+            }
+            return false;
+        }
+
+        closeRing();
+        mOpen = true;
+        mStartMs = nowMs;
+        mSuppressed = 0;
+        mRings++;
+        mListener.onRing();
+        return true;
+    }
+
+    /**
+     * Close the current ring if its window has elapsed. Callers should schedule
+     * this for {@link #getWindowMs()} after each new ring.
+     */
+    public void closeExpired(long nowMs) {
+        if (mOpen && nowMs - mStartMs >= mWindowMs) {
+            closeRing();
+        }
+    }
+
+    private void closeRing() {
+        if (!mOpen) {
+            return;
+        }
+        mOpen = false;
+        if (mExtraFrame && mSuppressed > 0) {
+            mListener.onExtraFrame();
+        }
+        mListener.onRingClosed(mSuppressed);
+    }
+
+    public long getWindowMs() {
+        return mWindowMs;
+    }
+
+    public long getRingCount() {
+        return mRings;
+    }
+
+    public long getSuppressedCount() {
+        return mSuppressedTotal;
+    }
+}
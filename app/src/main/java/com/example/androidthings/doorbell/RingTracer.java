@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records monotonic timestamps for each stage of a ring, from the button press to
+ * the annotations being stored. Rings are tracked in a fixed number of preallocated
+ * slots, so marking a stage does not allocate. The time from press to each stage is
+ * accumulated into a per-stage {@link LatencyHistogram}.
+ */
+public class RingTracer {
+
+    public static final int STAGE_PRESS = 0;
+    public static final int STAGE_FRAME = 1;
+    public static final int STAGE_SPOOLED = 2;
+    public static final int STAGE_UPLOADED = 3;
+    public static final int STAGE_RECORDED = 4;
+    public static final int STAGE_ANNOTATED = 5;
+
+    // A ring is complete once its image is uploaded and annotation has finished.
+    private static final int[] COMPLETION_STAGES = {STAGE_UPLOADED, STAGE_ANNOTATED};
+
+    private static final String[] STAGE_NAMES = {
+            "press", "frame", "spooled", "uploaded", "recorded", "annotated"
+    };
+
+    private final String[] mKeys;
+    private final long[][] mTimestamps;
+    private int mNextSlot;
+    private final LatencyHistogram[] mStageLatency = new LatencyHistogram[STAGE_NAMES.length];
+
+    /**
+     * @param capacity number of rings that can be in progress at once; older rings
+     *                 are evicted when more are started.
+     */
+    public RingTracer(int capacity) {
+        mKeys = new String[capacity];
+        mTimestamps = new long[capacity][STAGE_NAMES.length];
+        for (int i = 0; i < mStageLatency.length; i++) {
+            mStageLatency[i] = new LatencyHistogram("press-to-" + STAGE_NAMES[i]);
+        }
+    }
+
+    /**
+     * Start tracing a ring at its button press.
+     */
+    public synchronized void begin(String key) {
+        int slot = mNextSlot;
+        mNextSlot = (mNextSlot + 1) % mKeys.length;
+        mKeys[slot] = key;
+        long[] timestamps = mTimestamps[slot];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = 0;
+        }
+        timestamps[STAGE_PRESS] = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Record that a ring reached a stage. Only the first time is kept, and rings
+     * that are not being traced are ignored.
+     *
+     * @return true if this mark completed the ring, i.e. the image is uploaded and
+     *         annotation has finished.
+     */
+    public synchronized boolean mark(String key, int stage) {
+        int slot = findSlot(key);
+        if (slot < 0 || mTimestamps[slot][stage] != 0) {
+            return false;
+        }
+        long now = SystemClock.elapsedRealtime();
+        mTimestamps[slot][stage] = now;
+        mStageLatency[stage].record(now - mTimestamps[slot][STAGE_PRESS]);
+
+        for (int completionStage : COMPLETION_STAGES) {
+            if (mTimestamps[slot][completionStage] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the time from press to each stage reached so far, keyed by stage name,
+     * or null if the ring is not being traced.
+     */
+    public synchronized Map<String, Long> getTimings(String key) {
+        int slot = findSlot(key);
+        if (slot < 0) {
+            return null;
+        }
+        long[] timestamps = mTimestamps[slot];
+        Map<String, Long> timings = new HashMap<>();
+        for (int stage = STAGE_PRESS + 1; stage < timestamps.length; stage++) {
+            if (timestamps[stage] != 0) {
+                timings.put(STAGE_NAMES[stage], timestamps[stage] - timestamps[STAGE_PRESS]);
+            }
+        }
+        return timings;
+    }
+
+    /**
+     * Write per-stage latency percentiles to a file, replacing its contents.
+     */
+    public void dump(File file) throws IOException {
+        String report = toString();
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(report);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private int findSlot(String key) {
+        for (int i = 0; i < mKeys.length; i++) {
+            if (key.equals(mKeys[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("RingTracer");
+        for (int stage = STAGE_PRESS + 1; stage < mStageLatency.length; stage++) {
+            sb.append('\n').append(mStageLatency[stage].summary());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CPU-only {@link ImageAnnotator} used when Cloud Vision is unreachable or too slow.
+ * It does not recognise objects: it tags coarse scene attributes (lighting, dominant
+ * colour and level of detail) from a heavily subsampled decode of the image, so it
+ * needs no model files and runs in a few milliseconds on the device. Its tags are
+ * not comparable with Cloud Vision labels and are stored apart from them.
+ *
+ * Pixel buffers are reused, so calls are serialized.
+ */
+public class SceneTagAnnotator implements ImageAnnotator {
+
+    // Decode at 1/8 of the capture resolution; plenty for global statistics.
+    private static final int SAMPLE_SIZE = 8;
+
+    private static final float NIGHT_LUMA = 0.2f;
+    private static final float DAYLIGHT_LUMA = 0.55f;
+    private static final float MIN_SATURATION = 0.25f;
+    private static final float DETAILED_EDGE_DENSITY = 0.15f;
+    private static final int EDGE_THRESHOLD = 24;
+
+    private static final String[] HUE_LABELS = {
+            "Red", "Orange", "Yellow", "Green", "Cyan", "Blue", "Purple", "Pink"
+    };
+
+    private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+    private final float[] mHsv = new float[3];
+    private final int[] mHueCounts = new int[HUE_LABELS.length];
+    private int[] mPixels = new int[0];
+
+    public SceneTagAnnotator() {
+        mOptions.inSampleSize = SAMPLE_SIZE;
+        mOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+    }
+
+    @Override
+    public synchronized List<ImageAnnotations> annotate(List<FrameBuffer> frames)
+            throws IOException {
+        List<ImageAnnotations> results = new ArrayList<>(frames.size());
+        for (FrameBuffer frame : frames) {
+            results.add(new ImageAnnotations(getName(), annotate(frame)));
+        }
+        return results;
+    }
+
+    @Override
+    public String getName() {
+        return "local";
+    }
+
+    private Map<String, Float> annotate(FrameBuffer frame) throws IOException {
+        Bitmap bitmap = BitmapFactory.decodeByteArray(frame.getData(), 0, frame.getLength(),
+                mOptions);
+        if (bitmap == null) {
+            throw new IOException("Unable to decode image");
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int count = width * height;
+        if (mPixels.length < count) {
+            mPixels = new int[count];
+        }
+        bitmap.getPixels(mPixels, 0, width, 0, 0, width, height);
+        bitmap.recycle();
+
+        long lumaSum = 0;
+        int saturated = 0;
+        int edges = 0;
+        for (int i = 0; i < mHueCounts.length; i++) {
+            mHueCounts[i] = 0;
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int pixel = mPixels[y * width + x];
+                int luma = luma(pixel);
+                lumaSum += luma;
+                if (x > 0
+                        && Math.abs(luma - luma(mPixels[y * width + x - 1])) > EDGE_THRESHOLD) {
+                    edges++;
+                }
+                Color.colorToHSV(pixel, mHsv);
+                if (mHsv[1] >= MIN_SATURATION && mHsv[2] >= NIGHT_LUMA) {
+                    saturated++;
+                    mHueCounts[hueBucket(mHsv[0])]++;
+                }
+            }
+        }
+
+        Map<String, Float> annotations = new HashMap<>();
+        float meanLuma = count == 0 ? 0 : lumaSum / (255f * count);
+        if (meanLuma < NIGHT_LUMA) {
+            annotations.put("Night", 1f - meanLuma / NIGHT_LUMA);
+        } else if (meanLuma > DAYLIGHT_LUMA) {
+            annotations.put("Daylight", Math.min(1f, meanLuma));
+        }
+
+        int dominantHue = 0;
+        for (int i = 1; i < mHueCounts.length; i++) {
+            if (mHueCounts[i] > mHueCounts[dominantHue]) {
+                dominantHue = i;
+            }
+        }
+        if (saturated > 0) {
+            annotations.put(HUE_LABELS[dominantHue], (float) mHueCounts[dominantHue] / count);
+        }
+
+        float edgeDensity = count == 0 ? 0 : (float) edges / count;
+        if (edgeDensity > DETAILED_EDGE_DENSITY) {
+            annotations.put("Detailed scene", Math.min(1f, edgeDensity));
+        } else {
+            annotations.put("Plain scene", 1f - edgeDensity / DETAILED_EDGE_DENSITY);
+        }
+        return annotations;
+    }
+
+    private static int luma(int pixel) {
+        return (Color.red(pixel) * 299 + Color.green(pixel) * 587 + Color.blue(pixel) * 114)
+                / 1000;
+    }
+
+    private static int hueBucket(float hue) {
+        // Shift by half a bucket so red straddles 0 degrees
+        float bucketWidth = 360f / HUE_LABELS.length;
+        return (int) (((hue + bucketWidth / 2) % 360f) / bucketWidth);
+    }
+}
@@ -0,0 +1,544 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.gms.tasks.OnFailureListener;
+import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.firebase.storage.FirebaseStorage;
+import com.google.firebase.storage.OnProgressListener;
+import com.google.firebase.storage.StorageMetadata;
+import com.google.firebase.storage.UploadTask;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Drains the {@link UploadSpool} to Firebase Storage in order, with a bounded number
+ * of uploads in flight. Failed uploads pause the drain with exponential backoff, and
+ * the drain restarts immediately when a network becomes available.
+ *
+ * A first attempt streams the image straight from the spool, so a still is written to
+ * flash only once. If that upload fails, the retry stages the image to a file and sends
+ * it in a resumable upload session. The session URI is persisted next to the staged
+ * file, so an interrupted retry continues where it stopped, even after a restart.
+ * Images that cannot be read from the spool are retried with the same backoff.
+ *
+ * All methods must be called on the main thread. Staging images and acknowledging
+ * events, which both sync files to disk, run on a background thread and report back
+ * to the main thread.
+ */
+public class SpoolUploader {
+    private static final String TAG = SpoolUploader.class.getSimpleName();
+
+    private static final long INITIAL_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+    // How long stop() waits for acknowledgements already handed to the disk thread.
+    private static final long STOP_TIMEOUT_MS = 2000;
+
+    // Weight of the previous uplink estimate, as a fraction of this, against a new upload.
+    private static final int UPLINK_SMOOTHING = 4;
+
+    private static final String IMAGE_SUFFIX = ".jpg";
+    private static final String SESSION_SUFFIX = ".session";
+
+    private static final StorageMetadata METADATA = new StorageMetadata.Builder()
+            .setContentType("image/jpeg")
+            .build();
+
+    /**
+     * Receives each event once its image is in Storage, on the main thread.
+     */
+    public interface Listener {
+        void onUploaded(String key, long timestamp, Uri downloadUrl);
+    }
+
+    private final UploadSpool mSpool;
+    private final FrameBufferPool mPool;
+    private final FirebaseStorage mStorage;
+    private final File mStagingDir;
+    private final ConnectivityManager mConnectivityManager;
+    private final int mMaxInFlight;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread mDiskThread;
+    private Handler mDiskHandler;
+    private boolean mStopped;
+
+    // Events being staged, uploaded or acknowledged.
+    private final Set<String> mInFlight = new HashSet<>();
+    // Uploads started and not yet finished, by event key.
+    private final Map<String, UploadTask> mTasks = new HashMap<>();
+    // Events whose upload failed, retried from a staged file.
+    private final Set<String> mRetried = new HashSet<>();
+    private long mBackoffMs = INITIAL_BACKOFF_MS;
+    private long mPausedUntilMs;
+
+    private long mUploaded;
+    private long mFailures;
+    private long mResumed;
+    private long mBytesUploaded;
+    private long mUploadTimeMs;
+    // Moving average of recent upload throughput, or 0 until an upload completes.
+    private long mUplinkBytesPerSecond;
+    private final LatencyHistogram mFirstByteLatency = new LatencyHistogram("upload-ttfb");
+
+    /**
+     * @param stagingDir directory holding images and session URIs of uploads in progress.
+     */
+    public SpoolUploader(Context context, UploadSpool spool, FrameBufferPool pool,
+                         FirebaseStorage storage, File stagingDir, int maxInFlight,
+                         Listener listener) {
+        mSpool = spool;
+        mPool = pool;
+        mStorage = storage;
+        mStagingDir = stagingDir;
+        if (!stagingDir.isDirectory() && !stagingDir.mkdirs()) {
+            Log.w(TAG, "Unable to create upload staging directory " + stagingDir);
+        }
+        mConnectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        mMaxInFlight = maxInFlight;
+        mListener = listener;
+    }
+
+    /**
+     * Start draining, including any events recovered from a previous run.
+     */
+    public void start() {
+        mDiskThread = new HandlerThread("SpoolDisk", Process.THREAD_PRIORITY_BACKGROUND);
+        mDiskThread.start();
+        mDiskHandler = new Handler(mDiskThread.getLooper());
+        mDiskHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                deleteStaleStagingFiles();
+            }
+        });
+        mConnectivityManager.registerDefaultNetworkCallback(mNetworkCallback);
+        drain();
+    }
+
+    /**
+     * Remove staged images and sessions left behind by events no longer pending.
+     */
+    private void deleteStaleStagingFiles() {
+        File[] files = mStagingDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Set<String> pending = new HashSet<>();
+        for (UploadSpool.Record record : mSpool.getPending()) {
+            pending.add(record.key);
+        }
+        for (File file : files) {
+            String name = file.getName();
+            int dot = name.lastIndexOf('.');
+            if (dot < 0 || !pending.contains(name.substring(0, dot))) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Stop draining and cancel uploads in progress, whose events stay pending. No
+     * listener is called afterwards. Returns once pending disk work has finished, so
+     * the spool can be closed afterwards.
+     */
+    public void stop() {
+        mStopped = true;
+        mConnectivityManager.unregisterNetworkCallback(mNetworkCallback);
+        mHandler.removeCallbacks(mDrainRunnable);
+        for (UploadTask task : mTasks.values()) {
+            task.cancel();
+        }
+        mDiskThread.quitSafely();
+        try {
+            mDiskThread.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Upload as many pending events as the in-flight limit allows, oldest first.
+     */
+    public void drain() {
+        if (mStopped) {
+            return;
+        }
+        mHandler.removeCallbacks(mDrainRunnable);
+        long now = SystemClock.elapsedRealtime();
+        if (now < mPausedUntilMs) {
+            mHandler.postDelayed(mDrainRunnable, mPausedUntilMs - now);
+            return;
+        }
+
+        List<UploadSpool.Record> pending = mSpool.getPending();
+        for (UploadSpool.Record record : pending) {
+            if (mInFlight.size() >= mMaxInFlight) {
+                break;
+            }
+            if (!mInFlight.contains(record.key)) {
+                upload(record);
+            }
+        }
+    }
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private final ConnectivityManager.NetworkCallback mNetworkCallback =
+            new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            Log.d(TAG, "Network available, draining spool");
+                            mBackoffMs = INITIAL_BACKOFF_MS;
+                            mPausedUntilMs = 0;
+                            drain();
+                        }
+                    });
+                }
+            };
+
+    /**
+     * Start an event's upload. A first attempt streams the image straight from the
+     * spool. An event whose upload has failed before, or was staged by an earlier run,
+     * is staged to a file on the disk thread and sent in a resumable session instead.
+     */
+    private void upload(final UploadSpool.Record record) {
+        mInFlight.add(record.key);
+        final File image = new File(mStagingDir, record.key + IMAGE_SUFFIX);
+        final File session = new File(mStagingDir, record.key + SESSION_SUFFIX);
+        final boolean retry = mRetried.contains(record.key);
+        mDiskHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!retry && !image.exists()) {
+                    readForStream(record);
+                    return;
+                }
+                try {
+                    stage(record, image);
+                } catch (IOException e) {
+                    onReadFailed(record, e);
+                    return;
+                }
+                final Uri sessionUri = readSessionUri(session);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mStopped) {
+                            return;
+                        }
+                        if (sessionUri != null) {
+                            Log.d(TAG, "Resuming upload of " + record.key);
+                            mResumed++;
+                        }
+                        UploadTask task = mStorage.getReference().child(record.key)
+                                .putFile(Uri.fromFile(image), METADATA, sessionUri);
+                        track(record, task, null, image, session, sessionUri);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Read a spooled image into a pooled buffer and stream it. Called on the disk thread.
+     */
+    private void readForStream(final UploadSpool.Record record) {
+        final FrameBuffer frame;
+        try {
+            frame = mSpool.read(record, mPool);
+        } catch (IOException e) {
+            onReadFailed(record, e);
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mStopped) {
+                    frame.release();
+                    return;
+                }
+                UploadTask task = mStorage.getReference().child(record.key)
+                        .putStream(frame.openStream(), METADATA);
+                track(record, task, frame, null, null, null);
+            }
+        });
+    }
+
+    /**
+     * Retry an event whose image could not be read or staged after the backoff, like a
+     * failed upload. Called on the disk thread.
+     */
+    private void onReadFailed(final UploadSpool.Record record, final IOException e) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Log.e(TAG, "Unable to read spooled event " + record.key + ", retrying in "
+                        + mBackoffMs + "ms", e);
+                mFailures++;
+                retryLater(record.key);
+            }
+        });
+    }
+
+    /**
+     * Pause the drain with exponential backoff, leaving the event pending.
+     */
+    private void retryLater(String key) {
+        mInFlight.remove(key);
+        if (mStopped) {
+            return;
+        }
+        mPausedUntilMs = SystemClock.elapsedRealtime() + mBackoffMs;
+        mBackoffMs = Math.min(mBackoffMs * 2, MAX_BACKOFF_MS);
+        drain();
+    }
+
+    /**
+     * Follow an upload to completion.
+     *
+     * @param frame buffer a streamed upload reads from, released once it finishes, or
+     *              null for a staged upload.
+     * @param image staged file, or null for a streamed upload.
+     * @param session file persisting the staged upload's session URI, or null.
+     * @param sessionUri session the staged upload resumes, or null.
+     */
+    private void track(final UploadSpool.Record record, final UploadTask task,
+                       final FrameBuffer frame, final File image, final File session,
+                       final Uri sessionUri) {
+        mTasks.put(record.key, task);
+        final long start = SystemClock.elapsedRealtime();
+        final long[] firstByteMs = {0};
+        final boolean[] sessionSaved = {false};
+        task.addOnProgressListener(new OnProgressListener<UploadTask.TaskSnapshot>() {
+            @Override
+            public void onProgress(UploadTask.TaskSnapshot taskSnapshot) {
+                if (mStopped) {
+                    return;
+                }
+                final Uri uploadSessionUri = taskSnapshot.getUploadSessionUri();
+                if (session != null && uploadSessionUri != null
+                        && !uploadSessionUri.equals(sessionUri) && !sessionSaved[0]) {
+                    sessionSaved[0] = true;
+                    mDiskHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!session.exists()) {
+                                writeSessionUri(session, uploadSessionUri);
+                            }
+                        }
+                    });
+                }
+                if (firstByteMs[0] == 0 && taskSnapshot.getBytesTransferred() > 0) {
+                    firstByteMs[0] = SystemClock.elapsedRealtime() - start;
+                    mFirstByteLatency.record(firstByteMs[0]);
+                }
+            }
+        }).addOnSuccessListener(new OnSuccessListener<UploadTask.TaskSnapshot>() {
+            @Override
+            public void onSuccess(UploadTask.TaskSnapshot taskSnapshot) {
+                finish(record, frame);
+                // the event stays pending and is uploaded again after the restart
+                if (mStopped) {
+                    return;
+                }
+                long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+                long bytes = taskSnapshot.getTotalByteCount();
+                Log.i(TAG, "Image upload successful: " + bytes + " bytes in " + elapsed
+                        + "ms (" + bytes * 1000 / elapsed + " B/s, first byte after "
+                        + firstByteMs[0] + "ms)");
+                mUploaded++;
+                mBytesUploaded += bytes;
+                mUploadTimeMs += elapsed;
+                long bytesPerSecond = bytes * 1000 / elapsed;
+                mUplinkBytesPerSecond = mUplinkBytesPerSecond == 0
+                        ? bytesPerSecond
+                        : (mUplinkBytesPerSecond * (UPLINK_SMOOTHING - 1) + bytesPerSecond)
+                                / UPLINK_SMOOTHING;
+                mBackoffMs = INITIAL_BACKOFF_MS;
+                mRetried.remove(record.key);
+                mListener.onUploaded(record.key, record.timestamp,
+                        taskSnapshot.getDownloadUrl());
+                // the event stays in flight until the spool no longer lists it
+                mDiskHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            mSpool.complete(record);
+                        } catch (IOException e) {
+                            Log.e(TAG, "Unable to acknowledge spooled event " + record.key, e);
+                        }
+                        if (image != null) {
+                            image.delete();
+                            session.delete();
+                        }
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                mInFlight.remove(record.key);
+                                drain();
+                            }
+                        });
+                    }
+                });
+            }
+        }).addOnFailureListener(new OnFailureListener() {
+            @Override
+            public void onFailure(@NonNull Exception e) {
+                finish(record, frame);
+                if (mStopped) {
+                    return;
+                }
+                Log.w(TAG, "Unable to upload image to Firebase, retrying in "
+                        + mBackoffMs + "ms", e);
+                mFailures++;
+                // the retry is staged, so it can resume after a restart
+                mRetried.add(record.key);
+                // A session that could not be resumed at all is likely expired
+                if (sessionUri != null && firstByteMs[0] == 0) {
+                    mDiskHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            session.delete();
+                        }
+                    });
+                }
+                retryLater(record.key);
+            }
+        });
+    }
+
+    /**
+     * Forget a finished upload task and release the buffer it streamed from.
+     */
+    private void finish(UploadSpool.Record record, FrameBuffer frame) {
+        mTasks.remove(record.key);
+        if (frame != null) {
+            frame.release();
+        }
+    }
+
+    /**
+     * Copy a spooled image to its staging file, unless an earlier attempt already did.
+     * Called on the disk thread.
+     */
+    private void stage(UploadSpool.Record record, File image) throws IOException {
+        if (image.length() == record.dataLength) {
+            return;
+        }
+        FrameBuffer frame = mSpool.read(record, mPool);
+        File tmp = new File(mStagingDir, record.key + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(frame.getData(), 0, frame.getLength());
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } finally {
+            frame.release();
+        }
+        if (!tmp.renameTo(image)) {
+            throw new IOException("Unable to rename " + tmp);
+        }
+    }
+
+    private Uri readSessionUri(File session) {
+        if (!session.exists()) {
+            return null;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(session));
+            try {
+                String line = reader.readLine();
+                return line != null ? Uri.parse(line) : null;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read upload session " + session, e);
+            return null;
+        }
+    }
+
+    private void writeSessionUri(File session, Uri uri) {
+        try {
+            Writer writer = new FileWriter(session);
+            try {
+                writer.write(uri.toString());
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to persist upload session " + session, e);
+        }
+    }
+
+    /**
+     * Return a moving average of recent upload throughput in bytes per second, or 0 if
+     * no upload has completed yet. Called on the main thread.
+     */
+    public long getUplinkBytesPerSecond() {
+        return mUplinkBytesPerSecond;
+    }
+
+    /**
+     * Return a summary of upload counts, throughput and the current backlog.
+     */
+    public String getMetricsSummary() {
+        return "SpoolUploader: uploaded=" + mUploaded
+                + " failures=" + mFailures
+                + " resumed=" + mResumed
+                + " pending=" + mSpool.getPending().size()
+                + " bytes=" + mBytesUploaded
+                + " throughput=" + (mBytesUploaded * 1000 / Math.max(1, mUploadTimeMs)) + "B/s"
+                + " uplink=" + mUplinkBytesPerSecond + "B/s"
+                + "\n" + mFirstByteLatency.summary();
+    }
+}
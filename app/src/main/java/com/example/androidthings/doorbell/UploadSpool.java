@@ -0,0 +1,303 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Disk-backed, append-only spool of doorbell events waiting to be uploaded.
+ *
+ * Each event is appended to a single log file as
+ * {@code magic | keyLength | key | timestamp | dataLength | data | crc32} and flushed
+ * to disk before the upload starts. A separate acknowledgement file holds the offset
+ * below which every event has been uploaded. On open, the log is replayed from that
+ * offset and a partially written trailing record is truncated, so events survive a
+ * crash or power loss. Uploads are keyed by the event's push key, so replaying an
+ * event that was uploaded just before a crash is harmless.
+ */
+public class UploadSpool {
+    private static final String TAG = UploadSpool.class.getSimpleName();
+
+    private static final String LOG_FILE = "spool.log";
+    private static final String ACK_FILE = "spool.ack";
+
+    private static final int MAGIC = 0x444F4F52;
+    private static final int MAX_KEY_LENGTH = 256;
+    private static final int MAX_DATA_LENGTH = 16 * 1024 * 1024;
+    // magic + keyLength, then timestamp + dataLength after the key
+    private static final int HEADER_PREFIX_SIZE = 8;
+    private static final int HEADER_SUFFIX_SIZE = 12;
+    private static final int CRC_SIZE = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * A spooled event.
+     */
+    public static final class Record {
+        final long offset;
+        final long end;
+        final long dataOffset;
+        public final String key;
+        public final long timestamp;
+        public final int dataLength;
+        boolean done;
+
+        Record(long offset, long end, long dataOffset, String key, long timestamp,
+               int dataLength) {
+            this.offset = offset;
+            this.end = end;
+            this.dataOffset = dataOffset;
+            this.key = key;
+            this.timestamp = timestamp;
+            this.dataLength = dataLength;
+        }
+    }
+
+    private final FileChannel mLog;
+    private final RandomAccessFile mAck;
+    private final List<Record> mRecords = new ArrayList<>();
+    private final CRC32 mCrc = new CRC32();
+    private final ByteBuffer mAckBuffer = ByteBuffer.allocate(16);
+    private long mAckOffset;
+
+    /**
+     * Open the spool in the given directory, recovering any events that were not
+     * acknowledged before the process last stopped.
+     */
+    public UploadSpool(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create spool directory " + directory);
+        }
+        mLog = new RandomAccessFile(new File(directory, LOG_FILE), "rw").getChannel();
+        mAck = new RandomAccessFile(new File(directory, ACK_FILE), "rw");
+        mAckOffset = readAckOffset();
+        recover();
+    }
+
+    /**
+     * Persist an event. Returns once the data has been written to disk.
+     */
+    public synchronized Record append(String key, long timestamp, FrameBuffer frame)
+            throws IOException {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        int length = frame.getLength();
+
+        mCrc.reset();
+        mCrc.update(keyBytes);
+        mCrc.update(frame.getData(), 0, length);
+
+        ByteBuffer header = ByteBuffer.allocate(
+                HEADER_PREFIX_SIZE + keyBytes.length + HEADER_SUFFIX_SIZE);
+        header.putInt(MAGIC).putInt(keyBytes.length).put(keyBytes)
+                .putLong(timestamp).putInt(length);
+        header.flip();
+        ByteBuffer trailer = ByteBuffer.allocate(CRC_SIZE);
+        trailer.putInt((int) mCrc.getValue());
+        trailer.flip();
+
+        long offset = mLog.size();
+        mLog.position(offset);
+        writeFully(header);
+        writeFully(ByteBuffer.wrap(frame.getData(), 0, length));
+        writeFully(trailer);
+        mLog.force(false);
+
+        long dataOffset = offset + header.capacity();
+        Record record = new Record(offset, dataOffset + length + CRC_SIZE, dataOffset,
+                key, timestamp, length);
+        mRecords.add(record);
+        return record;
+    }
+
+    /**
+     * Read the image data of a spooled event into a pooled buffer.
+     */
+    public FrameBuffer read(Record record, FrameBufferPool pool) throws IOException {
+        FrameBuffer frame = pool.acquire(record.dataLength);
+        ByteBuffer dst = ByteBuffer.wrap(frame.getData(), 0, record.dataLength);
+        synchronized (this) {
+            long position = record.dataOffset;
+            while (dst.hasRemaining()) {
+                int read = mLog.read(dst, position);
+                if (read < 0) {
+                    frame.release();
+                    throw new IOException("Unexpected end of spool");
+                }
+                position += read;
+            }
+        }
+        frame.setLength(record.dataLength);
+        return frame;
+    }
+
+    /**
+     * Return events that have not been marked complete, oldest first.
+     */
+    public synchronized List<Record> getPending() {
+        List<Record> pending = new ArrayList<>(mRecords.size());
+        for (Record record : mRecords) {
+            if (!record.done) {
+                pending.add(record);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Mark an event as uploaded. The acknowledged offset advances over every leading
+     * completed event, and the log is truncated once it holds no pending events.
+     */
+    public synchronized void complete(Record record) throws IOException {
+        record.done = true;
+        long ackOffset = mAckOffset;
+        while (!mRecords.isEmpty() && mRecords.get(0).done) {
+            ackOffset = mRecords.remove(0).end;
+        }
+
+        if (mRecords.isEmpty()) {
+            mLog.truncate(0);
+            mLog.force(false);
+            ackOffset = 0;
+        }
+        if (ackOffset != mAckOffset) {
+            writeAckOffset(ackOffset);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        mLog.close();
+        mAck.close();
+    }
+
+    /**
+     * Replay the log from the acknowledged offset, dropping a torn trailing record.
+     */
+    private void recover() throws IOException {
+        long size = mLog.size();
+        if (mAckOffset > size) {
+            mAckOffset = 0;
+        }
+        long offset = mAckOffset;
+        ByteBuffer prefix = ByteBuffer.allocate(HEADER_PREFIX_SIZE);
+        ByteBuffer suffix = ByteBuffer.allocate(HEADER_SUFFIX_SIZE);
+        ByteBuffer crc = ByteBuffer.allocate(CRC_SIZE);
+        ByteBuffer chunk = ByteBuffer.allocate(8 * 1024);
+
+        while (offset < size) {
+            prefix.clear();
+            if (!readFully(prefix, offset) || prefix.getInt(0) != MAGIC) {
+                break;
+            }
+            int keyLength = prefix.getInt(4);
+            if (keyLength <= 0 || keyLength > MAX_KEY_LENGTH) {
+                break;
+            }
+            ByteBuffer key = ByteBuffer.allocate(keyLength);
+            long position = offset + HEADER_PREFIX_SIZE;
+            suffix.clear();
+            if (!readFully(key, position) || !readFully(suffix, position + keyLength)) {
+                break;
+            }
+            long timestamp = suffix.getLong(0);
+            int dataLength = suffix.getInt(8);
+            long dataOffset = position + keyLength + HEADER_SUFFIX_SIZE;
+            long end = dataOffset + dataLength + CRC_SIZE;
+            if (dataLength < 0 || dataLength > MAX_DATA_LENGTH || end > size) {
+                break;
+            }
+
+            mCrc.reset();
+            mCrc.update(key.array());
+            long remaining = dataLength;
+            long dataPosition = dataOffset;
+            while (remaining > 0) {
+                chunk.clear();
+                chunk.limit((int) Math.min(chunk.capacity(), remaining));
+                readFully(chunk, dataPosition);
+                mCrc.update(chunk.array(), 0, chunk.limit());
+                remaining -= chunk.limit();
+                dataPosition += chunk.limit();
+            }
+            crc.clear();
+            if (!readFully(crc, dataOffset + dataLength)
+                    || crc.getInt(0) != (int) mCrc.getValue()) {
+                break;
+            }
+
+            mRecords.add(new Record(offset, end, dataOffset,
+                    new String(key.array(), UTF_8), timestamp, dataLength));
+            offset = end;
+        }
+
+        if (offset < size) {
+            Log.w(TAG, "Truncating " + (size - offset) + " bytes of incomplete spool data");
+            mLog.truncate(offset);
+            mLog.force(false);
+        }
+        Log.i(TAG, "Recovered " + mRecords.size() + " spooled events");
+    }
+
+    private boolean readFully(ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int read = mLog.read(dst, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    private void writeFully(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            mLog.write(src);
+        }
+    }
+
+    /**
+     * The acknowledgement file stores the offset and its complement, so a torn write
+     * is detected and the whole log is replayed instead.
+     */
+    private long readAckOffset() throws IOException {
+        if (mAck.length() < mAckBuffer.capacity()) {
+            return 0;
+        }
+        mAck.seek(0);
+        long offset = mAck.readLong();
+        long check = mAck.readLong();
+        return offset == ~check ? offset : 0;
+    }
+
+    private void writeAckOffset(long offset) throws IOException {
+        mAckBuffer.clear();
+        mAckBuffer.putLong(offset).putLong(~offset);
+        mAck.seek(0);
+        mAck.write(mAckBuffer.array());
+        mAck.getFD().sync();
+        mAckOffset = offset;
+    }
+}
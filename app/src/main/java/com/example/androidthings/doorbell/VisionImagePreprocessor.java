@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Produces a smaller JPEG derivative of a still for Cloud Vision. Label detection
+ * does not need full resolution, so images larger than the maximum dimension are
+ * downscaled and recompressed. Smaller images are recompressed at the target quality
+ * when that saves bytes, and passed through untouched otherwise. The archival upload
+ * always uses the original frame.
+ *
+ * Decode and encode buffers are reused, so calls are serialized.
+ */
+public class VisionImagePreprocessor {
+    private static final String TAG = VisionImagePreprocessor.class.getSimpleName();
+
+    /**
+     * ByteArrayOutputStream that can copy its contents without an intermediate array.
+     */
+    private static class ReusableOutputStream extends ByteArrayOutputStream {
+        ReusableOutputStream(int size) {
+            super(size);
+        }
+
+        void copyTo(byte[] dst) {
+            System.arraycopy(buf, 0, dst, 0, count);
+        }
+    }
+
+    private final FrameBufferPool mPool;
+    private final int mMaxDimension;
+    private final int mJpegQuality;
+
+    private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+    private final ReusableOutputStream mOutput = new ReusableOutputStream(32 * 1024);
+
+    private final LatencyHistogram mDecodeLatency = new LatencyHistogram("vision-decode");
+    private final LatencyHistogram mEncodeLatency = new LatencyHistogram("vision-encode");
+    private long mImages;
+    private long mResized;
+    private long mRecompressed;
+    private long mBytesIn;
+    private long mBytesOut;
+
+    /**
+     * @param pool pool for the derivative buffers.
+     * @param maxDimension longest edge in pixels sent to Vision, or 0 to disable resizing.
+     * @param jpegQuality JPEG quality (0-100) used when recompressing.
+     */
+    public VisionImagePreprocessor(FrameBufferPool pool, int maxDimension, int jpegQuality) {
+        mPool = pool;
+        mMaxDimension = maxDimension;
+        mJpegQuality = jpegQuality;
+    }
+
+    /**
+     * Return a frame to send to Vision, holding one reference for the caller. This is
+     * either a new derivative or the original frame with an extra reference.
+     */
+    public synchronized FrameBuffer process(FrameBuffer frame) {
+        mImages++;
+        mBytesIn += frame.getLength();
+        if (mMaxDimension <= 0) {
+            mBytesOut += frame.getLength();
+            return frame.retain();
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        mOptions.inJustDecodeBounds = true;
+        mOptions.inSampleSize = 1;
+        BitmapFactory.decodeByteArray(frame.getData(), 0, frame.getLength(), mOptions);
+        int longest = Math.max(mOptions.outWidth, mOptions.outHeight);
+
+        // Subsample while decoding, then scale exactly to the target size
+        int sampleSize = 1;
+        while (longest / (sampleSize * 2) >= mMaxDimension) {
+            sampleSize *= 2;
+        }
+        mOptions.inJustDecodeBounds = false;
+        mOptions.inSampleSize = sampleSize;
+        Bitmap decoded = BitmapFactory.decodeByteArray(frame.getData(), 0, frame.getLength(),
+                mOptions);
+        if (decoded == null) {
+            Log.w(TAG, "Unable to decode image, sending original");
+            mBytesOut += frame.getLength();
+            return frame.retain();
+        }
+        Bitmap scaled = decoded;
+        int decodedLongest = Math.max(decoded.getWidth(), decoded.getHeight());
+        if (decodedLongest > mMaxDimension) {
+            float scale = (float) mMaxDimension / decodedLongest;
+            scaled = Bitmap.createScaledBitmap(decoded,
+                    Math.round(decoded.getWidth() * scale),
+                    Math.round(decoded.getHeight() * scale), true);
+            decoded.recycle();
+        }
+        mDecodeLatency.record(SystemClock.elapsedRealtime() - start);
+
+        start = SystemClock.elapsedRealtime();
+        mOutput.reset();
+        scaled.compress(Bitmap.CompressFormat.JPEG, mJpegQuality, mOutput);
+        scaled.recycle();
+        if (longest <= mMaxDimension && mOutput.size() >= frame.getLength()) {
+            // Already small and compressed at least as much as the target
+            mEncodeLatency.record(SystemClock.elapsedRealtime() - start);
+            mBytesOut += frame.getLength();
+            return frame.retain();
+        }
+        FrameBuffer derivative = mPool.acquire(mOutput.size());
+        mOutput.copyTo(derivative.getData());
+        derivative.setLength(mOutput.size());
+        mEncodeLatency.record(SystemClock.elapsedRealtime() - start);
+
+        if (longest > mMaxDimension) {
+            mResized++;
+        } else {
+            mRecompressed++;
+        }
+        mBytesOut += derivative.getLength();
+        return derivative;
+    }
+
+    /**
+     * Return a summary of bytes and time spent per stage.
+     */
+    public synchronized String getMetricsSummary() {
+        return "VisionImagePreprocessor: images=" + mImages
+                + " resized=" + mResized
+                + " recompressed=" + mRecompressed
+                + " bytesIn=" + mBytesIn
+                + " bytesOut=" + mBytesOut
+                + "\n" + mDecodeLatency.summary()
+                + "\n" + mEncodeLatency.summary();
+    }
+}
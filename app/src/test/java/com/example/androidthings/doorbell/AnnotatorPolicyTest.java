@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import android.net.ConnectivityManager;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class AnnotatorPolicyTest {
+
+    private static final long BUDGET_MS = 50;
+    private static final long RETRY_INTERVAL_MS = 60000;
+
+    /**
+     * Annotator that labels every image with its own name, optionally waiting for a
+     * latch or failing first.
+     */
+    private static class StubAnnotator implements ImageAnnotator {
+        final String mName;
+        final CountDownLatch mProceed = new CountDownLatch(1);
+        final CountDownLatch mFinished = new CountDownLatch(1);
+        boolean mBlock;
+        boolean mFail;
+        int mCalls;
+
+        StubAnnotator(String name) {
+            mName = name;
+        }
+
+        @Override
+        public List<ImageAnnotations> annotate(List<FrameBuffer> frames) throws IOException {
+            mCalls++;
+            try {
+                if (mBlock) {
+                    awaitUninterruptibly(mProceed);
+                }
+                if (mFail) {
+                    throw new IOException("stub failure");
+                }
+                List<Map<String, Float>> scores = new ArrayList<>();
+                for (int i = 0; i < frames.size(); i++) {
+                    scores.add(Collections.singletonMap(mName, 1f));
+                }
+                return ImageAnnotations.of(mName, scores);
+            } finally {
+                mFinished.countDown();
+            }
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Wait like a blocking socket read, which an abandoned request cannot interrupt.
+         */
+        private static void awaitUninterruptibly(CountDownLatch latch) {
+            while (true) {
+                try {
+                    latch.await();
+                    return;
+                } catch (InterruptedException e) {
+                    // Keep waiting
+                }
+            }
+        }
+    }
+
+    private final FrameBufferPool mPool = new FrameBufferPool(64, 2);
+    private final StubAnnotator mRemote = new StubAnnotator("cloud");
+    private final StubAnnotator mLocal = new StubAnnotator("local");
+    private final AnnotatorPolicy mPolicy =
+            new AnnotatorPolicy((ConnectivityManager) null, mRemote, mLocal, BUDGET_MS,
+                    RETRY_INTERVAL_MS);
+
+    @After
+    public void tearDown() {
+        mRemote.mProceed.countDown();
+        mPolicy.shutdown();
+    }
+
+    private List<FrameBuffer> frames() {
+        FrameBuffer frame = mPool.acquire(16);
+        frame.setLength(16);
+        return Collections.singletonList(frame);
+    }
+
+    @Test
+    public void remoteAnswerWithinBudgetIsUsed() throws IOException {
+        List<ImageAnnotations> results = mPolicy.annotate(frames());
+
+        assertEquals("cloud", results.get(0).getAnnotator());
+        assertEquals(0, mLocal.mCalls);
+        assertTrue(mPolicy.isRemoteAvailable());
+    }
+
+    @Test
+    public void slowRemoteFallsBackWithinBudget() throws IOException {
+        mRemote.mBlock = true;
+
+        long start = System.nanoTime();
+        List<ImageAnnotations> results = mPolicy.annotate(frames());
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        assertEquals("local", results.get(0).getAnnotator());
+        assertTrue("waited " + elapsedMs + "ms", elapsedMs < 10 * BUDGET_MS);
+        assertTrue(mPolicy.getMetricsSummary(), mPolicy.getMetricsSummary().contains("timeouts=1"));
+        // Later requests stay local until the retry interval has passed
+        assertFalse(mPolicy.isRemoteAvailable());
+        mPolicy.annotate(frames());
+        assertEquals(1, mRemote.mCalls);
+    }
+
+    @Test
+    public void failedRemoteFallsBack() throws IOException {
+        mRemote.mFail = true;
+
+        List<ImageAnnotations> results = mPolicy.annotate(frames());
+
+        assertEquals("local", results.get(0).getAnnotator());
+        assertFalse(mPolicy.isRemoteAvailable());
+    }
+
+    @Test
+    public void abandonedRequestHoldsItsFrames() throws Exception {
+        mRemote.mBlock = true;
+        List<FrameBuffer> frames = frames();
+        FrameBuffer frame = frames.get(0);
+
+        mPolicy.annotate(frames);
+        frame.release();
+
+        // The abandoned request still reads the frame, so it is not handed out again
+        FrameBuffer other = mPool.acquire(16);
+        assertNotSame(frame, other);
+        other.release();
+
+        mRemote.mProceed.countDown();
+        assertTrue(mRemote.mFinished.await(10, TimeUnit.SECONDS));
+        // Released by the request thread just after the annotator returns
+        for (int i = 0; i < 100 && !mPool.toString().contains("free=2"); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(mPool.toString(), mPool.toString().contains("free=2"));
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CachingAnnotatorTest {
+
+    private static final long TTL_MS = 60 * 60 * 1000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final FrameBufferPool mPool = new FrameBufferPool(1024, 8);
+
+    /**
+     * Labels each image with its first byte, as the named annotator, and counts the
+     * images it was asked for. Fails every request while offline, answers for at most
+     * {@code answers} images, and returns no labels when {@code unlabelled}.
+     */
+    private static class FakeAnnotator implements ImageAnnotator {
+        String name = "cloud";
+        boolean offline;
+        boolean unlabelled;
+        int answers = Integer.MAX_VALUE;
+        int images;
+
+        @Override
+        public List<ImageAnnotations> annotate(List<FrameBuffer> frames) throws IOException {
+            if (offline) {
+                throw new IOException("offline");
+            }
+            images += frames.size();
+            List<ImageAnnotations> results = new ArrayList<>(frames.size());
+            for (FrameBuffer frame : frames.subList(0, Math.min(answers, frames.size()))) {
+                results.add(new ImageAnnotations(name, unlabelled
+                        ? Collections.<String, Float>emptyMap()
+                        : Collections.singletonMap("label" + frame.getData()[0], 0.5f)));
+            }
+            return results;
+        }
+
+        @Override
+        public String getName() {
+            return "fake";
+        }
+    }
+
+    private FrameBuffer frame(int value) {
+        FrameBuffer frame = mPool.acquire(16);
+        Arrays.fill(frame.getData(), 0, 16, (byte) value);
+        frame.setLength(16);
+        return frame;
+    }
+
+    private CachingAnnotator cache(ImageAnnotator delegate, File dir, int diskEntries) {
+        return new CachingAnnotator(delegate, "cloud", 64 * 1024, TTL_MS, dir, diskEntries);
+    }
+
+    @Test
+    public void identicalImagesReachDelegateOnce() throws IOException {
+        FakeAnnotator delegate = new FakeAnnotator();
+        CachingAnnotator cache = cache(delegate, null, 0);
+
+        cache.annotate(Arrays.asList(frame(1), frame(2)));
+        List<ImageAnnotations> results = cache.annotate(Arrays.asList(frame(2), frame(1)));
+
+        assertEquals(2, delegate.images);
+        assertEquals("cloud", results.get(0).getAnnotator());
+        assertTrue(results.get(0).getScores().containsKey("label2"));
+        assertTrue(results.get(1).getScores().containsKey("label1"));
+        String summary = cache.getMetricsSummary();
+        assertTrue(summary, summary.contains("hits=2 "));
+    }
+
+    @Test
+    public void duplicatesWithinBatchAreSentOnce() throws IOException {
+        FakeAnnotator delegate = new FakeAnnotator();
+        CachingAnnotator cache = cache(delegate, null, 0);
+
+        List<ImageAnnotations> results = cache.annotate(Arrays.asList(frame(3), frame(3)));
+
+        assertEquals(1, delegate.images);
+        assertEquals(results.get(0).getScores(), results.get(1).getScores());
+    }
+
+    @Test
+    public void fallbackResultsAreNotCached() throws IOException {
+        FakeAnnotator delegate = new FakeAnnotator();
+        CachingAnnotator cache = cache(delegate, null, 0);
+        delegate.name = "local";
+        assertEquals("local", cache.annotate(Arrays.asList(frame(1))).get(0).getAnnotator());
+
+        delegate.name = "cloud";
+        assertEquals("cloud", cache.annotate(Arrays.asList(frame(1))).get(0).getAnnotator());
+
+        assertEquals(2, delegate.images);
+    }
+
+    @Test
+    public void imagesMissingFromTheResponseAreFailedAndNotCached() throws IOException {
+        FakeAnnotator delegate = new FakeAnnotator();
+        CachingAnnotator cache = cache(delegate, null, 0);
+        delegate.answers = 1;
+
+        List<ImageAnnotations> results = cache.annotate(Arrays.asList(frame(1), frame(2)));
+
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).getScores().containsKey("label1"));
+        assertNull(results.get(1));
+
+        delegate.answers = Integer.MAX_VALUE;
+        assertTrue(cache.annotate(Arrays.asList(frame(2))).get(0).getScores()
+                .containsKey("label2"));
+        assertEquals(3, delegate.images);
+    }
+
+    @Test
+    public void resultsWithoutLabelsAreNotCached() throws IOException {
+        FakeAnnotator delegate = new FakeAnnotator();
+        CachingAnnotator cache = cache(delegate, null, 0);
+        delegate.unlabelled = true;
+        assertTrue(cache.annotate(Arrays.asList(frame(1))).get(0).getScores().isEmpty());
+
+        delegate.unlabelled = false;
+        assertTrue(cache.annotate(Arrays.asList(frame(1))).get(0).getScores()
+                .containsKey("label1"));
+
+        assertEquals(2, delegate.images);
+    }
+
+    @Test
+    public void diskTierAnswersAfterRestartWhileOffline() throws IOException {
+        File dir = mFolder.newFolder("annotations");
+        FakeAnnotator delegate = new FakeAnnotator();
+        cache(delegate, dir, 16).annotate(Arrays.asList(frame(4)));
+
+        FakeAnnotator offline = new FakeAnnotator();
+        offline.offline = true;
+        CachingAnnotator restarted = cache(offline, dir, 16);
+        List<ImageAnnotations> results = restarted.annotate(Arrays.asList(frame(4)));
+
+        assertEquals("cloud", results.get(0).getAnnotator());
+        assertTrue(results.get(0).getScores().containsKey("label4"));
+        assertTrue(restarted.getMetricsSummary().contains("diskHits=1 "));
+        try {
+            restarted.annotate(Arrays.asList(frame(5)));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void diskTierIsTrimmedBelowLimitWhenExceeded() throws IOException {
+        File dir = mFolder.newFolder("annotations");
+        int limit = 8;
+        CachingAnnotator cache = cache(new FakeAnnotator(), dir, limit);
+
+        for (int i = 0; i < limit; i++) {
+            cache.annotate(Arrays.asList(frame(i)));
+        }
+        assertEquals(limit, dir.listFiles().length);
+
+        cache.annotate(Arrays.asList(frame(limit)));
+
+        // Trimmed to three quarters of the limit, leaving room for further writes
+        assertEquals(limit - limit / 4, dir.listFiles().length);
+        assertTrue(cache.getMetricsSummary().contains("diskEntries=" + (limit - limit / 4)));
+    }
+
+    @Test
+    public void interruptedWritesAreRemovedOnOpen() throws IOException {
+        File dir = mFolder.newFolder("annotations");
+        cache(new FakeAnnotator(), dir, 16).annotate(Arrays.asList(frame(1)));
+        assertTrue(new File(dir, "partial.tmp").createNewFile());
+
+        CachingAnnotator cache = cache(new FakeAnnotator(), dir, 16);
+
+        assertEquals(1, dir.listFiles().length);
+        assertTrue(cache.getMetricsSummary().contains("diskEntries=1"));
+    }
+}
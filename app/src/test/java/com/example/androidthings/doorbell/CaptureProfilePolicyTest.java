@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertSame;
+
+public class CaptureProfilePolicyTest {
+
+    private static final int REDUCED_BACKLOG = 2;
+    private static final int MINIMAL_BACKLOG = 6;
+    private static final long STEP_UP = 64 * 1024;
+    private static final long STEP_DOWN = 32 * 1024;
+
+    private final CaptureProfile mHigh = new CaptureProfile("high", 640, 480, 90);
+    private final CaptureProfile mBaseline = new CaptureProfile("baseline", 320, 240, 85);
+    private final CaptureProfile mLow = new CaptureProfile("low", 160, 120, 70);
+    private final List<CaptureProfile> mProfiles = Arrays.asList(mHigh, mBaseline, mLow);
+
+    private final CaptureProfilePolicy mPolicy =
+            new CaptureProfilePolicy(REDUCED_BACKLOG, MINIMAL_BACKLOG, STEP_UP, STEP_DOWN);
+
+    private CaptureProfile choose(int pendingUploads, long uplinkBytesPerSecond) {
+        return mPolicy.choose(mProfiles, pendingUploads, uplinkBytesPerSecond);
+    }
+
+    @Test
+    public void startsAtBaselineBeforeTheUplinkIsMeasured() {
+        assertSame(mBaseline, choose(0, 0));
+    }
+
+    @Test
+    public void stepsUpOnlyWhenTheUplinkAllows() {
+        assertSame(mBaseline, choose(0, STEP_UP - 1));
+        assertSame(mHigh, choose(1, STEP_UP));
+    }
+
+    @Test
+    public void doesNotStepUpWithABacklog() {
+        assertSame(mBaseline, choose(REDUCED_BACKLOG, 10 * STEP_UP));
+    }
+
+    @Test
+    public void highHoldsUntilTheUplinkFallsBelowStepDown() {
+        choose(0, STEP_UP);
+
+        assertSame(mHigh, choose(0, STEP_DOWN));
+        assertSame(mBaseline, choose(0, STEP_DOWN - 1));
+        // Back above the step-down threshold is not enough to step up again
+        assertSame(mBaseline, choose(0, STEP_DOWN));
+    }
+
+    @Test
+    public void highIsLeftOnceImagesWait() {
+        choose(0, STEP_UP);
+
+        assertSame(mHigh, choose(REDUCED_BACKLOG - 1, STEP_UP));
+        assertSame(mBaseline, choose(REDUCED_BACKLOG, STEP_UP));
+    }
+
+    @Test
+    public void minimalBacklogStepsDownToLowest() {
+        assertSame(mBaseline, choose(MINIMAL_BACKLOG - 1, 0));
+        assertSame(mLow, choose(MINIMAL_BACKLOG, 0));
+    }
+
+    @Test
+    public void lowHoldsUntilTheBacklogDrainsBelowReduced() {
+        choose(MINIMAL_BACKLOG, STEP_UP);
+
+        assertSame(mLow, choose(MINIMAL_BACKLOG - 1, STEP_UP));
+        assertSame(mLow, choose(REDUCED_BACKLOG, STEP_UP));
+        assertSame(mBaseline, choose(REDUCED_BACKLOG - 1, STEP_UP));
+        assertSame(mHigh, choose(REDUCED_BACKLOG - 1, STEP_UP));
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.services.vision.v1.Vision;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the shared Vision client against a local stub server. Request latency is
+ * measured by CloudVisionUtilsBenchmark.
+ */
+public class CloudVisionUtilsTest {
+
+    private static final String RESPONSE = "{\"responses\":["
+            + "{\"labelAnnotations\":[{\"description\":\"Door\",\"score\":0.9}]},"
+            + "{\"labelAnnotations\":[{\"description\":\"Person\",\"score\":0.8}]}]}";
+
+    private static final String PARTIAL_ERROR_RESPONSE = "{\"responses\":["
+            + "{\"error\":{\"code\":3,\"message\":\"Bad image data.\"}},"
+            + "{\"labelAnnotations\":[{\"description\":\"Person\",\"score\":0.8}]}]}";
+
+    private HttpServer mServer;
+    private volatile String mResponse = RESPONSE;
+    private final List<Integer> mClientPorts = Collections.synchronizedList(
+            new ArrayList<Integer>());
+    private final List<String> mRequestBodies = Collections.synchronizedList(
+            new ArrayList<String>());
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mClientPorts.add(exchange.getRemoteAddress().getPort());
+                InputStream in = exchange.getRequestBody();
+                ByteArrayOutputStream request = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                for (int n; (n = in.read(buffer)) >= 0; ) {
+                    request.write(buffer, 0, n);
+                }
+                mRequestBodies.add(request.toString("UTF-8"));
+                byte[] body = mResponse.getBytes(Charset.forName("UTF-8"));
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        mServer.start();
+        CloudVisionUtils.setTransport(new NetHttpTransport());
+        CloudVisionUtils.setRootUrl("http://127.0.0.1:" + mServer.getAddress().getPort() + "/");
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        // The client is shared, so later tests must not inherit the stub endpoint
+        CloudVisionUtils.setTransport(null);
+        CloudVisionUtils.setRootUrl(Vision.DEFAULT_ROOT_URL);
+    }
+
+    @Test
+    public void sharedClientReusesConnection() throws IOException {
+        FrameBufferPool pool = new FrameBufferPool(1024, 2);
+        List<FrameBuffer> frames = Arrays.asList(pool.acquire(16), pool.acquire(16));
+        int requests = 20;
+        // Latency is recorded for the shared client across tests
+        long coldRequests = CloudVisionUtils.getColdLatency().getCount();
+        long warmRequests = CloudVisionUtils.getWarmLatency().getCount();
+
+        List<Map<String, Float>> results = CloudVisionUtils.annotateImages(frames);
+        for (int i = 1; i < requests; i++) {
+            CloudVisionUtils.annotateImages(frames);
+        }
+
+        assertEquals(2, results.size());
+        assertEquals(0.9f, results.get(0).get("Door"), 0.001f);
+        assertEquals(0.8f, results.get(1).get("Person"), 0.001f);
+        assertEquals(requests, mClientPorts.size());
+        // Every request after the first went over the same kept-alive connection
+        Set<Integer> ports = new HashSet<>(mClientPorts);
+        assertEquals(mClientPorts.toString(), 1, ports.size());
+
+        assertEquals(coldRequests + 1, CloudVisionUtils.getColdLatency().getCount());
+        assertEquals(warmRequests + requests - 1, CloudVisionUtils.getWarmLatency().getCount());
+    }
+
+    @Test
+    public void requestCarriesOnlyValidImageBytes() throws IOException {
+        FrameBuffer frame = new FrameBufferPool(1024, 1).acquire(16);
+        frame.getData()[0] = 'J';
+        frame.getData()[1] = 'P';
+        frame.getData()[2] = 'G';
+        frame.setLength(3);
+
+        CloudVisionUtils.annotateImages(Collections.singletonList(frame));
+
+        // "JPG" in base64, without the unused rest of the buffer
+        assertTrue(mRequestBodies.get(0), mRequestBodies.get(0).contains("\"content\":\"SlBH\""));
+    }
+
+    @Test
+    public void failedImageInBatchHasNoAnnotations() throws IOException {
+        mResponse = PARTIAL_ERROR_RESPONSE;
+        FrameBufferPool pool = new FrameBufferPool(1024, 2);
+        List<FrameBuffer> frames = Arrays.asList(pool.acquire(16), pool.acquire(16));
+
+        List<Map<String, Float>> results = CloudVisionUtils.annotateImages(frames);
+
+        assertEquals(2, results.size());
+        assertNull(results.get(0));
+        assertEquals(0.8f, results.get(1).get("Person"), 0.001f);
+    }
+
+    @Test(expected = IOException.class)
+    public void failedSingleImageThrows() throws IOException {
+        mResponse = PARTIAL_ERROR_RESPONSE;
+
+        CloudVisionUtils.annotateImage(new byte[16]);
+    }
+}
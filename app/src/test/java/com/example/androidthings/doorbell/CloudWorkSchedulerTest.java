@@ -0,0 +1,199 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CloudWorkSchedulerTest {
+
+    private CloudWorkScheduler mScheduler;
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    private final List<String> mEvents = Collections.synchronizedList(new ArrayList<String>());
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+        if (mScheduler != null) {
+            mScheduler.shutdown();
+        }
+    }
+
+    /**
+     * Records "run:<name>" or "dropped:<name>".
+     */
+    private class NamedTask extends CloudWorkScheduler.Task {
+        final String name;
+        final CountDownLatch done;
+
+        NamedTask(String name, CountDownLatch done) {
+            this.name = name;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            mEvents.add("run:" + name);
+            done.countDown();
+        }
+
+        @Override
+        public void onDropped() {
+            mEvents.add("dropped:" + name);
+            done.countDown();
+        }
+    }
+
+    /**
+     * Occupy the scheduler's only worker until the test releases it, so further
+     * tasks stay queued.
+     */
+    private void blockWorker() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        mScheduler.submit(new CloudWorkScheduler.Task() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    mRelease.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 0);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void higherPriorityFirstThenNewestFirst() throws InterruptedException {
+        mScheduler = new CloudWorkScheduler(1, 8, CloudWorkScheduler.ShedPolicy.DROP_OLDEST);
+        blockWorker();
+        CountDownLatch done = new CountDownLatch(4);
+        mScheduler.submit(new NamedTask("a", done), 0);
+        mScheduler.submit(new NamedTask("b", done), 0);
+        mScheduler.submit(new NamedTask("c", done), 1);
+        mScheduler.submit(new NamedTask("d", done), 0);
+        assertEquals(4, mScheduler.getQueueDepth());
+
+        mRelease.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[run:c, run:d, run:b, run:a]", mEvents.toString());
+    }
+
+    @Test
+    public void dropOldestShedsTheTaskThatWouldRunLast() throws InterruptedException {
+        mScheduler = new CloudWorkScheduler(1, 2, CloudWorkScheduler.ShedPolicy.DROP_OLDEST);
+        blockWorker();
+        CountDownLatch done = new CountDownLatch(4);
+        mScheduler.submit(new NamedTask("high", done), 1);
+        mScheduler.submit(new NamedTask("old", done), 0);
+
+        assertTrue(mScheduler.submit(new NamedTask("new", done), 0));
+        // A lower priority task is shed even though it is newer than the queued one
+        assertTrue(mScheduler.submit(new NamedTask("newest", done), 1));
+        assertEquals("[dropped:old, dropped:new]", mEvents.toString());
+
+        mRelease.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[dropped:old, dropped:new, run:newest, run:high]", mEvents.toString());
+        assertTrue(mScheduler.getMetricsSummary(),
+                mScheduler.getMetricsSummary().contains("dropped=2 "));
+    }
+
+    @Test
+    public void rejectNewestDropsTheSubmittedTask() throws InterruptedException {
+        mScheduler = new CloudWorkScheduler(1, 1, CloudWorkScheduler.ShedPolicy.REJECT_NEWEST);
+        blockWorker();
+        CountDownLatch done = new CountDownLatch(2);
+        assertTrue(mScheduler.submit(new NamedTask("queued", done), 0));
+
+        assertFalse(mScheduler.submit(new NamedTask("rejected", done), 5));
+
+        mRelease.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[dropped:rejected, run:queued]", mEvents.toString());
+    }
+
+    @Test
+    public void shutdownDropsQueuedTasks() throws InterruptedException {
+        mScheduler = new CloudWorkScheduler(1, 4, CloudWorkScheduler.ShedPolicy.DROP_OLDEST);
+        blockWorker();
+        CountDownLatch done = new CountDownLatch(2);
+        mScheduler.submit(new NamedTask("a", done), 0);
+        mScheduler.submit(new NamedTask("b", done), 0);
+
+        mScheduler.shutdown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(mEvents.contains("dropped:a"));
+        assertTrue(mEvents.contains("dropped:b"));
+        mScheduler = null;
+    }
+
+    /**
+     * Drives the scheduler with rings arriving faster than a stubbed backend can
+     * serve them. Every task must either run or be dropped, exactly once.
+     */
+    @Test
+    public void overloadedBackendShedsButAccountsForEveryTask() throws InterruptedException {
+        int tasks = 200;
+        final long backendMs = 4;
+        mScheduler = new CloudWorkScheduler(2, 4, CloudWorkScheduler.ShedPolicy.DROP_OLDEST);
+        final AtomicInteger ran = new AtomicInteger();
+        final AtomicInteger dropped = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(tasks);
+
+        for (int i = 0; i < tasks; i++) {
+            mScheduler.submit(new CloudWorkScheduler.Task() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(backendMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    ran.incrementAndGet();
+                    done.countDown();
+                }
+
+                @Override
+                public void onDropped() {
+                    dropped.incrementAndGet();
+                    done.countDown();
+                }
+            }, 0);
+            Thread.sleep(1);
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        assertEquals(tasks, ran.get() + dropped.get());
+        assertTrue(dropped.get() > 0);
+        assertTrue(mScheduler.getMetricsSummary().contains("maxQueueDepth=4"));
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class DoorbellActivityTest {
+
+    private static Map<String, Float> scores(Object... labelsAndScores) {
+        Map<String, Float> scores = new HashMap<>();
+        for (int i = 0; i < labelsAndScores.length; i += 2) {
+            scores.put((String) labelsAndScores[i], (Float) labelsAndScores[i + 1]);
+        }
+        return scores;
+    }
+
+    @Test
+    public void topLabelsAreBestFirst() {
+        List<String> labels = DoorbellActivity.topLabels(
+                scores("Door", 0.6f, "Person", 0.9f, "Box", 0.3f, "Dog", 0.7f), 3);
+
+        assertEquals(Arrays.asList("Person", "Dog", "Door"), labels);
+    }
+
+    @Test
+    public void topLabelsReturnsAllWhenFewerThanLimit() {
+        List<String> labels = DoorbellActivity.topLabels(scores("Door", 0.6f), 3);
+
+        assertEquals(Collections.singletonList("Door"), labels);
+        assertEquals(0, DoorbellActivity.topLabels(scores(), 3).size());
+    }
+
+    @Test
+    public void topLabelsIsIndependentOfScores() {
+        Map<String, Float> scores = scores("Door", 0.6f, "Person", 0.9f);
+        List<String> labels = DoorbellActivity.topLabels(scores, 1);
+
+        // Stored in the event record, so later changes must not reach it
+        labels.add("Dog");
+        scores.put("Cat", 1f);
+
+        assertEquals(Arrays.asList("Person", "Dog"), labels);
+        assertEquals(3, scores.size());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameBufferPoolTest {
+
+    @Test
+    public void releasedBufferIsReused() {
+        FrameBufferPool pool = new FrameBufferPool(16, 2);
+        FrameBuffer first = pool.acquire(8);
+        first.setLength(8);
+        first.release();
+
+        FrameBuffer second = pool.acquire(4);
+
+        assertSame(first, second);
+        assertEquals(0, second.getLength());
+    }
+
+    @Test
+    public void bufferIsRecycledAfterLastRelease() {
+        FrameBufferPool pool = new FrameBufferPool(16, 2);
+        FrameBuffer frame = pool.acquire(8);
+        frame.retain();
+
+        frame.release();
+        assertNotSame(frame, pool.acquire(8));
+
+        frame.release();
+        assertSame(frame, pool.acquire(8));
+    }
+
+    @Test
+    public void oversizedRequestBypassesPool() {
+        FrameBufferPool pool = new FrameBufferPool(16, 2);
+        FrameBuffer large = pool.acquire(32);
+        assertTrue(large.getCapacity() >= 32);
+
+        large.release();
+
+        assertNotSame(large, pool.acquire(32));
+        assertTrue(pool.toString().contains("oversized=2"));
+    }
+
+    @Test
+    public void poolKeepsAtMostMaxPooledBuffers() {
+        FrameBufferPool pool = new FrameBufferPool(16, 1);
+        FrameBuffer a = pool.acquire(8);
+        FrameBuffer b = pool.acquire(8);
+        a.release();
+        b.release();
+
+        assertTrue(pool.toString().contains("free=1"));
+    }
+
+    @Test
+    public void retainAfterReleaseFails() {
+        FrameBuffer frame = new FrameBufferPool(16, 1).acquire(8);
+        frame.release();
+        try {
+            frame.retain();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void doubleReleaseFails() {
+        FrameBuffer frame = new FrameBufferPool(16, 1).acquire(8);
+        frame.release();
+        try {
+            frame.release();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void streamAndCopyCoverValidBytesOnly() throws Exception {
+        FrameBuffer frame = new FrameBufferPool(16, 1).acquire(8);
+        frame.getData()[0] = 7;
+        frame.getData()[1] = 9;
+        frame.setLength(2);
+
+        assertEquals(2, frame.toByteArray().length);
+        InputStream in = frame.openStream();
+        assertEquals(7, in.read());
+        assertEquals(9, in.read());
+        assertEquals(-1, in.read());
+    }
+
+    /**
+     * Replays JPEG-sized payloads through the buffer lifecycle of a ring: the camera
+     * copy, a spool write, an annotation derivative and the uploader, with up to two
+     * rings in flight. The pool must stop allocating after warm-up. Timings are in
+     * FrameBufferPoolBenchmark.
+     */
+    @Test
+    public void replayedRingsDoNotAllocateAfterWarmUp() {
+        int rings = 1000;
+        int capacity = 128 * 1024;
+        FrameBufferPool pool = new FrameBufferPool(capacity, 4);
+        Random random = new Random(42);
+        byte[] payload = new byte[capacity];
+        random.nextBytes(payload);
+
+        FrameBuffer inFlight = null;
+        for (int i = 0; i < rings; i++) {
+            int length = 20 * 1024 + random.nextInt(80 * 1024);
+            FrameBuffer frame = pool.acquire(length);
+            System.arraycopy(payload, 0, frame.getData(), 0, length);
+            frame.setLength(length);
+
+            FrameBuffer upload = frame.retain();
+            FrameBuffer derivative = pool.acquire(length / 4);
+            derivative.setLength(length / 4);
+            derivative.release();
+            frame.release();
+
+            // The previous ring's upload completes while this one is captured
+            if (inFlight != null) {
+                inFlight.release();
+            }
+            inFlight = upload;
+        }
+        inFlight.release();
+
+        String stats = pool.toString();
+        assertTrue(stats, stats.contains("allocations=3 "));
+        assertTrue(stats, stats.contains("oversized=0"));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameRingBufferTest {
+
+    private static ByteBuffer frame(int value, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) value;
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    @Test
+    public void snapshotReturnsFramesOldestFirst() {
+        FrameRingBuffer ring = new FrameRingBuffer(3, 8);
+        ring.write(frame(1, 4), 100);
+        ring.write(frame(2, 8), 200);
+
+        List<byte[]> frames = ring.snapshot(3, 0);
+
+        assertEquals(2, frames.size());
+        assertArrayEquals(new byte[]{1, 1, 1, 1}, frames.get(0));
+        assertEquals(8, frames.get(1).length);
+        assertEquals(2, frames.get(1)[0]);
+    }
+
+    @Test
+    public void fullRingOverwritesOldestFrame() {
+        FrameRingBuffer ring = new FrameRingBuffer(2, 4);
+        ring.write(frame(1, 4), 100);
+        ring.write(frame(2, 4), 200);
+        ring.write(frame(3, 4), 300);
+
+        List<byte[]> frames = ring.snapshot(5, 0);
+
+        assertEquals(2, frames.size());
+        assertEquals(2, frames.get(0)[0]);
+        assertEquals(3, frames.get(1)[0]);
+    }
+
+    @Test
+    public void snapshotKeepsMostRecentFramesWithinAge() {
+        FrameRingBuffer ring = new FrameRingBuffer(4, 4);
+        for (int i = 1; i <= 4; i++) {
+            ring.write(frame(i, 4), i * 100);
+        }
+
+        List<byte[]> recent = ring.snapshot(2, 0);
+        assertEquals(2, recent.size());
+        assertEquals(3, recent.get(0)[0]);
+        assertEquals(4, recent.get(1)[0]);
+
+        List<byte[]> fresh = ring.snapshot(4, 250);
+        assertEquals(2, fresh.size());
+        assertEquals(3, fresh.get(0)[0]);
+    }
+
+    @Test
+    public void snapshotCopiesFrames() {
+        FrameRingBuffer ring = new FrameRingBuffer(1, 4);
+        ring.write(frame(1, 4), 100);
+        byte[] copy = ring.snapshot(1, 0).get(0);
+
+        ring.write(frame(2, 4), 200);
+
+        assertEquals(1, copy[0]);
+    }
+
+    @Test
+    public void oversizedFrameIsDropped() {
+        FrameRingBuffer ring = new FrameRingBuffer(2, 4);
+
+        assertFalse(ring.write(frame(1, 5), 100));
+        assertTrue(ring.write(frame(2, 4), 200));
+
+        assertEquals(1, ring.getDroppedFrames());
+        assertEquals(1, ring.snapshot(2, 0).size());
+        assertEquals(8, ring.getMemoryCap());
+    }
+
+    @Test
+    public void clearEmptiesRing() {
+        FrameRingBuffer ring = new FrameRingBuffer(2, 4);
+        ring.write(frame(1, 4), 100);
+
+        ring.clear();
+
+        assertTrue(ring.snapshot(2, 0).isEmpty());
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ImageArchiveTest {
+
+    private static final int IMAGE_SIZE = 100;
+    // Four images per segment, and at most three segments of data
+    private static final int SEGMENT_ENTRIES = 4;
+    private static final long SEGMENT_BYTES = 1024 * 1024;
+    private static final long MAX_BYTES = 3 * SEGMENT_ENTRIES * IMAGE_SIZE;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final FrameBufferPool mPool = new FrameBufferPool(64 * 1024, 4);
+    private File mDir;
+    private ImageArchive mArchive;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = mFolder.newFolder("archive");
+        mArchive = new ImageArchive(mDir, MAX_BYTES, SEGMENT_BYTES, SEGMENT_ENTRIES);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mArchive.close();
+    }
+
+    private static String key(int i) {
+        // Push keys sort in creation order
+        return String.format("-Lkey%06d", i);
+    }
+
+    private FrameBuffer frame(int value, int length) {
+        FrameBuffer frame = mPool.acquire(length);
+        Arrays.fill(frame.getData(), 0, length, (byte) value);
+        frame.setLength(length);
+        return frame;
+    }
+
+    private void appendImages(int first, int count) throws IOException {
+        for (int i = first; i < first + count; i++) {
+            FrameBuffer frame = frame(i, IMAGE_SIZE);
+            mArchive.append(key(i), 1000L * i, frame);
+            frame.release();
+        }
+    }
+
+    private byte[] read(ImageArchive.Entry entry) throws IOException {
+        FrameBuffer frame = mArchive.read(entry, mPool);
+        byte[] data = frame.toByteArray();
+        frame.release();
+        return data;
+    }
+
+    @Test
+    public void appendedImageReadsBack() throws IOException {
+        FrameBuffer frame = frame(7, 300);
+        ImageArchive.Entry entry = mArchive.append(key(1), 1000, frame);
+
+        assertArrayEquals(frame.toByteArray(), read(entry));
+        assertEquals(key(1), entry.key);
+        frame.release();
+    }
+
+    @Test
+    public void findByTimestampReturnsFirstAtOrAfter() throws IOException {
+        appendImages(1, 10);
+
+        assertEquals(key(3), mArchive.findByTimestamp(3000).key);
+        assertEquals(key(4), mArchive.findByTimestamp(3001).key);
+        // Across the boundary between the first and second segments
+        assertEquals(key(5), mArchive.findByTimestamp(4500).key);
+        assertEquals(key(1), mArchive.findByTimestamp(0).key);
+        assertNull(mArchive.findByTimestamp(10001));
+    }
+
+    @Test
+    public void findByKeySearchesEverySegment() throws IOException {
+        appendImages(1, 10);
+
+        for (int i = 1; i <= 10; i++) {
+            ImageArchive.Entry entry = mArchive.findByKey(key(i));
+            assertEquals(key(i), entry.key);
+            assertEquals(1000L * i, entry.timestamp);
+            assertEquals((byte) i, read(entry)[0]);
+        }
+        assertNull(mArchive.findByKey(key(11)));
+        assertNull(mArchive.findByKey("-Lkey000005x"));
+        assertNull(mArchive.findByKey("a-key-that-is-longer-than-a-push-key"));
+    }
+
+    @Test
+    public void earlierTimestampIsStoredAsLatest() throws IOException {
+        FrameBuffer frame = frame(1, IMAGE_SIZE);
+        mArchive.append(key(1), 5000, frame);
+
+        ImageArchive.Entry entry = mArchive.append(key(2), 4000, frame);
+
+        assertEquals(5000, entry.timestamp);
+        assertEquals(key(1), mArchive.findByTimestamp(5000).key);
+        frame.release();
+    }
+
+    @Test
+    public void retentionDeletesOldestSegments() throws IOException {
+        appendImages(1, 4);
+        ImageArchive.Entry oldest = mArchive.findByKey(key(1));
+
+        appendImages(5, 9);
+
+        assertNull(mArchive.findByKey(key(1)));
+        assertNull(mArchive.findByKey(key(4)));
+        assertEquals(key(5), mArchive.findByTimestamp(0).key);
+        assertEquals(key(13), mArchive.findByKey(key(13)).key);
+        String summary = mArchive.getMetricsSummary();
+        assertTrue(summary, summary.contains("deletedSegments=1 "));
+        try {
+            read(oldest);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void imagesSurviveReopen() throws IOException {
+        appendImages(1, 6);
+        mArchive.close();
+
+        mArchive = new ImageArchive(mDir, MAX_BYTES, SEGMENT_BYTES, SEGMENT_ENTRIES);
+
+        assertEquals((byte) 6, read(mArchive.findByKey(key(6)))[0]);
+        assertEquals(key(2), mArchive.findByTimestamp(1500).key);
+        // Appending continues in the last segment
+        appendImages(7, 1);
+        assertEquals(key(7), mArchive.findByTimestamp(7000).key);
+    }
+
+    @Test
+    public void unindexedDataIsDroppedOnReopen() throws IOException {
+        appendImages(1, 2);
+        mArchive.close();
+        File data = new File(mDir, String.format("%016d", 0) + ".dat");
+        long indexedLength = data.length();
+        // The process died after writing image data but before indexing it
+        FileOutputStream out = new FileOutputStream(data, true);
+        out.write(new byte[IMAGE_SIZE / 2]);
+        out.close();
+
+        mArchive = new ImageArchive(mDir, MAX_BYTES, SEGMENT_BYTES, SEGMENT_ENTRIES);
+
+        assertEquals(indexedLength, data.length());
+        appendImages(3, 1);
+        assertEquals((byte) 3, read(mArchive.findByKey(key(3)))[0]);
+    }
+
+    @Test
+    public void findByKeyDoesNotDependOnKeyOrder() throws IOException {
+        // The wall clock stepped back, so a later ring has an earlier push key
+        appendImages(5, 3);
+        appendImages(1, 3);
+        appendImages(9, 3);
+
+        for (int i : new int[] {1, 2, 3, 5, 6, 7, 9, 10, 11}) {
+            assertEquals((byte) i, read(mArchive.findByKey(key(i)))[0]);
+        }
+        mArchive.close();
+
+        mArchive = new ImageArchive(mDir, MAX_BYTES, SEGMENT_BYTES, SEGMENT_ENTRIES);
+
+        assertEquals((byte) 1, read(mArchive.findByKey(key(1)))[0]);
+        assertEquals((byte) 7, read(mArchive.findByKey(key(7)))[0]);
+    }
+
+    @Test
+    public void appendedImagesAreReadableWithoutClose() throws IOException {
+        appendImages(1, 5);
+
+        // As after a crash, the first archive is never closed
+        ImageArchive reopened =
+                new ImageArchive(mDir, MAX_BYTES, SEGMENT_BYTES, SEGMENT_ENTRIES);
+        try {
+            FrameBuffer frame = reopened.read(reopened.findByKey(key(5)), mPool);
+            assertEquals((byte) 5, frame.getData()[0]);
+            frame.release();
+            assertEquals(key(3), reopened.findByTimestamp(3000).key);
+        } finally {
+            reopened.close();
+        }
+    }
+}
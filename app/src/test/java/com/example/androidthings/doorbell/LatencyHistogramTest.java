@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogramHasNoSamples() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals("test: no samples", histogram.summary());
+    }
+
+    @Test
+    public void percentileIsBucketBoundCappedAtMaximum() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        for (int i = 0; i < 9; i++) {
+            histogram.record(30);
+        }
+        histogram.record(70);
+
+        assertEquals(10, histogram.getCount());
+        // 30ms falls in the 20-50ms bucket
+        assertEquals(50, histogram.getPercentile(50));
+        assertEquals(50, histogram.getPercentile(90));
+        // The slowest sample is below its bucket's bound of 100ms
+        assertEquals(70, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void bucketBoundsAreInclusive() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        histogram.record(10);
+        histogram.record(10);
+
+        assertEquals(10, histogram.getPercentile(100));
+        assertTrue(histogram.toString(), histogram.toString().contains("<=10ms: 2"));
+    }
+
+    @Test
+    public void slowSamplesReportObservedMaximum() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        histogram.record(1);
+        histogram.record(25000);
+
+        assertEquals(1, histogram.getPercentile(50));
+        assertEquals(25000, histogram.getPercentile(99));
+        assertTrue(histogram.toString(), histogram.toString().contains(">10000ms: 1"));
+    }
+
+    @Test
+    public void summaryReportsMeanAndPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram("press-to-frame");
+        histogram.record(100);
+        histogram.record(300);
+
+        assertEquals("press-to-frame: n=2 mean=200ms p50<=100ms p90<=300ms p99<=300ms"
+                + " max=300ms", histogram.summary());
+    }
+
+    @Test
+    public void resetClearsSamples() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        histogram.record(100);
+
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals("test: no samples", histogram.summary());
+    }
+}
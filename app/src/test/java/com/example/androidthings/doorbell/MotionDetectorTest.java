@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds synthetic luma planes of the preview size to the detector.
+ */
+public class MotionDetectorTest {
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final long COOLDOWN_MS = 1000;
+
+    private static MotionDetector detector() {
+        return new MotionDetector(16, 12, 20, 0.1f, COOLDOWN_MS);
+    }
+
+    private static ByteBuffer plane(int luma) {
+        byte[] data = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) luma;
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    /**
+     * Paint a square of the given brightness, as if something entered the frame.
+     */
+    private static ByteBuffer withSquare(ByteBuffer plane, int x0, int y0, int size, int luma) {
+        ByteBuffer copy = ByteBuffer.wrap(plane.array().clone());
+        for (int y = y0; y < y0 + size; y++) {
+            for (int x = x0; x < x0 + size; x++) {
+                copy.put(y * WIDTH + x, (byte) luma);
+            }
+        }
+        return copy;
+    }
+
+    private static boolean process(MotionDetector detector, ByteBuffer plane, long timeMs) {
+        return detector.process(plane, WIDTH, HEIGHT, WIDTH, 1, timeMs);
+    }
+
+    private static boolean process(MotionDetector detector, ByteBuffer plane, long timeMs,
+                                   int rowStride, int pixelStride) {
+        return detector.process(plane, WIDTH, HEIGHT, rowStride, pixelStride, timeMs);
+    }
+
+    @Test
+    public void firstFrameNeverTriggers() {
+        MotionDetector detector = detector();
+
+        assertFalse(process(detector, withSquare(plane(40), 0, 0, 80, 200), 0));
+    }
+
+    @Test
+    public void largeChangeTriggers() {
+        MotionDetector detector = detector();
+        ByteBuffer background = plane(40);
+        process(detector, background, 0);
+
+        assertFalse(process(detector, background, 100));
+        // A 60x60 square covers about a fifth of the 10x10 cells
+        assertTrue(process(detector, withSquare(background, 40, 30, 60, 200), 200));
+    }
+
+    @Test
+    public void smallOrFaintChangesDoNotTrigger() {
+        MotionDetector detector = detector();
+        ByteBuffer background = plane(40);
+        process(detector, background, 0);
+
+        // Four cells change, well under a tenth of the grid
+        assertFalse(process(detector, withSquare(background, 0, 0, 20, 200), 100));
+        // The whole frame brightens by less than the cell threshold
+        assertFalse(process(detector, plane(55), 200));
+    }
+
+    @Test
+    public void cooldownLimitsReports() {
+        MotionDetector detector = detector();
+        ByteBuffer dark = plane(40);
+        ByteBuffer bright = plane(200);
+        process(detector, dark, 0);
+
+        assertTrue(process(detector, bright, 100));
+        assertFalse(process(detector, dark, 100 + COOLDOWN_MS - 1));
+        assertTrue(process(detector, bright, 100 + COOLDOWN_MS));
+    }
+
+    @Test
+    public void resetForgetsPreviousFrame() {
+        MotionDetector detector = detector();
+        process(detector, plane(40), 0);
+
+        detector.reset();
+
+        assertFalse(process(detector, plane(200), 100));
+    }
+
+    @Test
+    public void paddingBetweenRowsAndPixelsIsIgnored() {
+        MotionDetector detector = detector();
+        int pixelStride = 2;
+        int rowStride = WIDTH * pixelStride + 32;
+        byte[] data = new byte[rowStride * HEIGHT];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) 40;
+        }
+        process(detector, ByteBuffer.wrap(data), 0, rowStride, pixelStride);
+
+        // Only bytes that are not pixels change
+        Random random = new Random(3);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < rowStride; x++) {
+                boolean pixel = x < WIDTH * pixelStride && x % pixelStride == 0;
+                if (!pixel) {
+                    data[y * rowStride + x] = (byte) random.nextInt(256);
+                }
+            }
+        }
+
+        assertFalse(process(detector, ByteBuffer.wrap(data), 100, rowStride, pixelStride));
+    }
+}
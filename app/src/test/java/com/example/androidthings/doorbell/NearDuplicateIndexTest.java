@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Hashing and lookup behavior of the index, driven by luma thumbnails and hashes
+ * directly since decoding stills needs the platform.
+ */
+public class NearDuplicateIndexTest {
+
+    private static final long MAX_AGE_MS = 60000;
+
+    @Test
+    public void nearHashWithinThresholdIsDuplicate() {
+        NearDuplicateIndex index = new NearDuplicateIndex(4, 6, MAX_AGE_MS);
+        long hash = 0x0123456789ABCDEFL;
+        assertNull(index.check("a", hash, 0));
+
+        // Six differing bits
+        assertEquals("a", index.check("b", hash ^ 0x3FL, 100));
+        // Seven differing bits
+        assertNull(index.check("c", hash ^ 0x7FL, 200));
+    }
+
+    @Test
+    public void duplicatesAreNotIndexed() {
+        NearDuplicateIndex index = new NearDuplicateIndex(4, 2, MAX_AGE_MS);
+        index.check("a", 0L, 0);
+        assertEquals("a", index.check("b", 0x3L, 100));
+
+        // Had b been indexed, this hash would be within two bits of it
+        assertNull(index.check("c", 0xFL, 200));
+    }
+
+    @Test
+    public void closestRecentMatchWins() {
+        NearDuplicateIndex index = new NearDuplicateIndex(4, 8, MAX_AGE_MS);
+        index.check("far", 0xFFL, 0);
+        index.check("near", 0xFF00L, 0);
+
+        assertEquals("near", index.check("x", 0xFF01L, 100));
+    }
+
+    @Test
+    public void oldStillsAreNotMatched() {
+        NearDuplicateIndex index = new NearDuplicateIndex(4, 6, MAX_AGE_MS);
+        index.check("a", 42L, 0);
+
+        assertEquals("a", index.check("b", 42L, MAX_AGE_MS));
+        assertNull(index.check("c", 42L, 2 * MAX_AGE_MS + 1));
+    }
+
+    @Test
+    public void fullIndexReplacesLeastRecentlyMatched() {
+        NearDuplicateIndex index = new NearDuplicateIndex(2, 0, MAX_AGE_MS);
+        index.check("a", 1L, 0);
+        index.check("b", 2L, 0);
+        // Matching a makes b the least recently used
+        assertEquals("a", index.check("x", 1L, 10));
+
+        index.check("c", 4L, 20);
+
+        assertEquals("a", index.check("y", 1L, 30));
+        assertNull(index.check("z", 2L, 40));
+    }
+
+    @Test
+    public void lumaUsesRec601Weights() {
+        int[] luma = new int[3];
+        NearDuplicateIndex.toLuma(new int[] {0xFFFFFFFF, 0xFFFF0000, 0xFF00FF00}, luma);
+
+        assertEquals(255, luma[0]);
+        assertEquals(76, luma[1]);
+        assertEquals(149, luma[2]);
+    }
+
+    @Test
+    public void darkeningPairsSetBitsFromTheTopLeft() {
+        int[] luma = new int[9 * 8];
+        // Only the first pair of the first row and the last pair of the last row darken
+        luma[0] = 10;
+        luma[9 * 8 - 2] = 10;
+
+        assertEquals(0x8000000000000001L, NearDuplicateIndex.dHash(luma));
+    }
+
+    @Test
+    public void uniformBrightnessChangeKeepsTheHash() {
+        Random random = new Random(9);
+        int[] luma = new int[9 * 8];
+        int[] brighter = new int[luma.length];
+        for (int i = 0; i < luma.length; i++) {
+            luma[i] = random.nextInt(200);
+            brighter[i] = luma[i] + 40;
+        }
+
+        assertEquals(NearDuplicateIndex.dHash(luma), NearDuplicateIndex.dHash(brighter));
+    }
+}
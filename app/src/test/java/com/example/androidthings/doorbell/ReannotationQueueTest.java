@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReannotationQueueTest {
+
+    @Test
+    public void takeReturnsOldestFirst() {
+        ReannotationQueue queue = new ReannotationQueue(8);
+        queue.add("a");
+        queue.add("b");
+        queue.add("c");
+
+        assertEquals("[a, b]", queue.take(2).toString());
+        assertEquals("[c]", queue.take(2).toString());
+        assertTrue(queue.take(2).isEmpty());
+    }
+
+    @Test
+    public void requeuedKeyKeepsItsPlace() {
+        ReannotationQueue queue = new ReannotationQueue(8);
+        queue.add("a");
+        queue.add("b");
+        queue.add("a");
+
+        assertEquals(2, queue.size());
+        assertEquals("[a, b]", queue.take(8).toString());
+    }
+
+    @Test
+    public void removedKeyIsNotTaken() {
+        ReannotationQueue queue = new ReannotationQueue(8);
+        queue.add("a");
+        queue.add("b");
+
+        queue.remove("a");
+
+        assertEquals("[b]", queue.take(8).toString());
+    }
+
+    @Test
+    public void fullQueueForgetsOldestKey() {
+        ReannotationQueue queue = new ReannotationQueue(2);
+        queue.add("a");
+        queue.add("b");
+        queue.add("c");
+
+        assertEquals("[b, c]", queue.take(8).toString());
+        assertTrue(queue.getMetricsSummary().contains("forgotten=1 "));
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RingCoalescerTest {
+
+    private static final long WINDOW_MS = 1000;
+
+    /**
+     * Records listener calls as "ring", "extra" and "closed:<suppressed>".
+     */
+    private static class RecordingListener implements RingCoalescer.Listener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onRing() {
+            events.add("ring");
+        }
+
+        @Override
+        public void onExtraFrame() {
+            events.add("extra");
+        }
+
+        @Override
+        public void onRingClosed(int suppressedPresses) {
+            events.add("closed:" + suppressedPresses);
+        }
+    }
+
+    @Test
+    public void singlePressRingsOnceAndClosesAfterWindow() {
+        RecordingListener listener = new RecordingListener();
+        RingCoalescer coalescer = new RingCoalescer(WINDOW_MS, true, listener);
+
+        assertTrue(coalescer.onPress(0));
+        coalescer.closeExpired(WINDOW_MS - 1);
+        assertEquals("[ring]", listener.events.toString());
+
+        coalescer.closeExpired(WINDOW_MS);
+        assertEquals("[ring, closed:0]", listener.events.toString());
+    }
+
+    @Test
+    public void pressesWithinWindowAreMerged() {
+        RecordingListener listener = new RecordingListener();
+        RingCoalescer coalescer = new RingCoalescer(WINDOW_MS, false, listener);
+
+        coalescer.onPress(0);
+        assertFalse(coalescer.onPress(100));
+        assertFalse(coalescer.onPress(WINDOW_MS - 1));
+        coalescer.closeExpired(WINDOW_MS);
+
+        assertEquals("[ring, closed:2]", listener.events.toString());
+        assertEquals(1, coalescer.getRingCount());
+        assertEquals(2, coalescer.getSuppressedCount());
+    }
+
+    @Test
+    public void pressAfterWindowClosesPreviousRingFirst() {
+        RecordingListener listener = new RecordingListener();
+        RingCoalescer coalescer = new RingCoalescer(WINDOW_MS, false, listener);
+
+        coalescer.onPress(0);
+        coalescer.onPress(500);
+        // The scheduled close has not run yet when the next press arrives
+        assertTrue(coalescer.onPress(WINDOW_MS));
+
+        assertEquals("[ring, closed:1, ring]", listener.events.toString());
+    }
+
+    @Test
+    public void extraFrameOnlyForRingsWithMergedPresses() {
+        RecordingListener listener = new RecordingListener();
+        RingCoalescer coalescer = new RingCoalescer(WINDOW_MS, true, listener);
+
+        coalescer.onPress(0);
+        coalescer.closeExpired(WINDOW_MS);
+        coalescer.onPress(2 * WINDOW_MS);
+        coalescer.onPress(2 * WINDOW_MS + 10);
+        coalescer.closeExpired(3 * WINDOW_MS);
+
+        assertEquals("[ring, closed:0, ring, extra, closed:1]", listener.events.toString());
+    }
+
+    @Test
+    public void closeExpiredIsIdempotent() {
+        RecordingListener listener = new RecordingListener();
+        RingCoalescer coalescer = new RingCoalescer(WINDOW_MS, true, listener);
+
+        coalescer.closeExpired(0);
+        coalescer.onPress(0);
+        coalescer.closeExpired(WINDOW_MS);
+        coalescer.closeExpired(2 * WINDOW_MS);
+
+        assertEquals("[ring, closed:0]", listener.events.toString());
+    }
+
+    @Test
+    public void mergedMotionIsNotCountedAsSuppressedPress() {
+        RecordingListener listener = new RecordingListener();
+        RingCoalescer coalescer = new RingCoalescer(WINDOW_MS, true, listener);
+
+        assertTrue(coalescer.onPress(0, false));
+        assertFalse(coalescer.onPress(100, false));
+        assertFalse(coalescer.onPress(200, true));
+        coalescer.closeExpired(WINDOW_MS);
+
+        assertEquals("[ring, extra, closed:1]", listener.events.toString());
+        assertEquals(1, coalescer.getSuppressedCount());
+    }
+
+    /**
+     * Replays bursts of impatient presses separated by quiet gaps, with the close
+     * scheduled one window after each ring as the activity does. Every burst must
+     * become exactly one ring and every press must be accounted for.
+     */
+    @Test
+    public void simulatedKeyStreamYieldsOneRingPerBurst() {
+        RecordingListener listener = new RecordingListener();
+        RingCoalescer coalescer = new RingCoalescer(WINDOW_MS, false, listener);
+        Random random = new Random(7);
+        int bursts = 1000;
+        int presses = 0;
+        long now = 0;
+        long closeAt = -1;
+
+        for (int burst = 0; burst < bursts; burst++) {
+            now += WINDOW_MS + random.nextInt(10 * (int) WINDOW_MS);
+            if (closeAt >= 0 && closeAt <= now) {
+                coalescer.closeExpired(closeAt);
+            }
+            long burstStart = now;
+            int count = 1 + random.nextInt(6);
+            for (int i = 0; i < count; i++) {
+                if (coalescer.onPress(now)) {
+                    closeAt = now + WINDOW_MS;
+                }
+                presses++;
+                now = burstStart + random.nextInt((int) WINDOW_MS);
+            }
+        }
+        coalescer.closeExpired(closeAt);
+
+        assertEquals(bursts, coalescer.getRingCount());
+        assertEquals(presses - bursts, coalescer.getSuppressedCount());
+        int closed = 0;
+        int suppressed = 0;
+        for (String event : listener.events) {
+            if (event.startsWith("closed:")) {
+                closed++;
+                suppressed += Integer.parseInt(event.substring("closed:".length()));
+            }
+        }
+        assertEquals(bursts, closed);
+        assertEquals(presses - bursts, suppressed);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Crash-recovery behavior of the spool, simulating torn writes by cutting or
+ * corrupting its files between close and reopen.
+ */
+public class UploadSpoolTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final FrameBufferPool mPool = new FrameBufferPool(64 * 1024, 4);
+    private File mDir;
+    private UploadSpool mSpool;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = mFolder.newFolder("spool");
+        mSpool = new UploadSpool(mDir);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mSpool.close();
+    }
+
+    private FrameBuffer frame(int value, int length) {
+        FrameBuffer frame = mPool.acquire(length);
+        for (int i = 0; i < length; i++) {
+            frame.getData()[i] = (byte) (value + i);
+        }
+        frame.setLength(length);
+        return frame;
+    }
+
+    private UploadSpool.Record append(String key, int value, int length) throws IOException {
+        FrameBuffer frame = frame(value, length);
+        try {
+            return mSpool.append(key, value, frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    private void reopen() throws IOException {
+        mSpool.close();
+        mSpool = new UploadSpool(mDir);
+    }
+
+    private List<String> pendingKeys() {
+        List<String> keys = new ArrayList<>();
+        for (UploadSpool.Record record : mSpool.getPending()) {
+            keys.add(record.key);
+        }
+        return keys;
+    }
+
+    private File logFile() {
+        return new File(mDir, "spool.log");
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void appendedRecordsSurviveReopen() throws IOException {
+        append("a", 1, 100);
+        append("b", 2, 200);
+
+        reopen();
+
+        List<UploadSpool.Record> pending = mSpool.getPending();
+        assertEquals(2, pending.size());
+        assertEquals("b", pending.get(1).key);
+        assertEquals(2, pending.get(1).timestamp);
+        FrameBuffer read = mSpool.read(pending.get(1), mPool);
+        FrameBuffer expected = frame(2, 200);
+        assertArrayEquals(expected.toByteArray(), read.toByteArray());
+        read.release();
+        expected.release();
+    }
+
+    @Test
+    public void tornTrailingRecordIsTruncated() throws IOException {
+        UploadSpool.Record first = append("a", 1, 100);
+        append("b", 2, 200);
+        mSpool.close();
+        // Power lost halfway through writing the second record's data
+        truncate(logFile(), first.end + 50);
+
+        mSpool = new UploadSpool(mDir);
+
+        assertEquals(1, mSpool.getPending().size());
+        assertEquals(first.end, logFile().length());
+        // The spool keeps appending where the last intact record ends
+        append("c", 3, 10);
+        reopen();
+        assertEquals("[a, c]", pendingKeys().toString());
+    }
+
+    @Test
+    public void recordWithBadChecksumIsTruncated() throws IOException {
+        UploadSpool.Record first = append("a", 1, 100);
+        UploadSpool.Record second = append("b", 2, 200);
+        mSpool.close();
+        RandomAccessFile raf = new RandomAccessFile(logFile(), "rw");
+        raf.seek(second.dataOffset + 10);
+        raf.write(0x5A);
+        raf.close();
+
+        mSpool = new UploadSpool(mDir);
+
+        assertEquals("[a]", pendingKeys().toString());
+        assertEquals(first.end, logFile().length());
+    }
+
+    @Test
+    public void tornAckFileReplaysWholeLog() throws IOException {
+        UploadSpool.Record first = append("a", 1, 100);
+        append("b", 2, 100);
+        append("c", 3, 100);
+        mSpool.complete(first);
+        mSpool.close();
+        // Only the offset half of the acknowledgement reached the disk
+        RandomAccessFile ack = new RandomAccessFile(new File(mDir, "spool.ack"), "rw");
+        ack.seek(8);
+        ack.writeLong(0);
+        ack.close();
+
+        mSpool = new UploadSpool(mDir);
+
+        // Replaying an uploaded event is harmless, losing one is not
+        assertEquals("[a, b, c]", pendingKeys().toString());
+    }
+
+    @Test
+    public void shortAckFileReplaysWholeLog() throws IOException {
+        UploadSpool.Record first = append("a", 1, 100);
+        append("b", 2, 100);
+        mSpool.complete(first);
+        mSpool.close();
+        truncate(new File(mDir, "spool.ack"), 12);
+
+        mSpool = new UploadSpool(mDir);
+
+        assertEquals("[a, b]", pendingKeys().toString());
+    }
+
+    @Test
+    public void replayStartsAfterLeadingCompletedRecords() throws IOException {
+        UploadSpool.Record a = append("a", 1, 100);
+        UploadSpool.Record b = append("b", 2, 100);
+        append("c", 3, 100);
+        UploadSpool.Record d = append("d", 4, 100);
+        mSpool.complete(a);
+        mSpool.complete(b);
+        mSpool.complete(d);
+        assertEquals("[c]", pendingKeys().toString());
+
+        reopen();
+
+        // Only the acknowledged prefix is skipped; d is after the pending c
+        assertEquals("[c, d]", pendingKeys().toString());
+    }
+
+    @Test
+    public void logIsTruncatedOnceEverythingIsAcknowledged() throws IOException {
+        UploadSpool.Record a = append("a", 1, 100);
+        UploadSpool.Record b = append("b", 2, 100);
+        mSpool.complete(b);
+        assertTrue(logFile().length() > 0);
+
+        mSpool.complete(a);
+
+        assertEquals(0, logFile().length());
+        assertTrue(mSpool.getPending().isEmpty());
+        reopen();
+        assertTrue(mSpool.getPending().isEmpty());
+        // Offsets restart at the beginning of the emptied log
+        assertEquals(0, append("c", 3, 10).offset);
+        reopen();
+        assertEquals("[c]", pendingKeys().toString());
+    }
+}
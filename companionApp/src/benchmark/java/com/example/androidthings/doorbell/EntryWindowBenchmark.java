@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens the history list against a local stand-in for a logs node of 100k events,
+ * comparing the paged window, which loads the newest page, with the whole-node
+ * listener the list used before, which holds a snapshot of every entry. Each child
+ * read from the stand-in is materialized afresh, as the database client does when
+ * it delivers a snapshot. Reports the time until the first row can be bound, and
+ * the heap the list then retains as the {@code retainedKiB} counter, which JMH sums
+ * over the measurement iterations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class EntryWindowBenchmark {
+
+    private static final int ENTRIES = 100000;
+    private static final int PAGE_SIZE = 20;
+
+    /**
+     * Heap retained by what a benchmark stored in {@code retained}, measured after
+     * each invocation.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Heap {
+        public long retainedKiB;
+        Object retained;
+        private long mBaseline;
+
+        @Setup(Level.Invocation)
+        public void before() {
+            retained = null;
+            mBaseline = usedHeap();
+        }
+
+        @TearDown(Level.Invocation)
+        public void after() {
+            retainedKiB = Math.max(0, usedHeap() - mBaseline) / 1024;
+            retained = null;
+        }
+
+        private static long usedHeap() {
+            Runtime runtime = Runtime.getRuntime();
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+            }
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+
+    // The stand-in's logs node, ordered by timestamp
+    private final String[] mKeys = new String[ENTRIES];
+    private final long[] mTimestamps = new long[ENTRIES];
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < ENTRIES; i++) {
+            mKeys[i] = String.format("-L%018d", i);
+            mTimestamps[i] = 1500000000000L + 60000L * i;
+        }
+    }
+
+    /**
+     * Return a fresh snapshot of a child as the device records it.
+     */
+    private Map<String, Object> snapshot(int i) {
+        Map<String, Object> value = new HashMap<>();
+        value.put("timestamp", mTimestamps[i]);
+        value.put("image", new String(mKeys[i]));
+        value.put("thumbnail", mKeys[i] + "-thumb");
+        value.put("labels", Arrays.asList(new String("Person"), new String("Door")));
+        value.put("annotator", new String("cloud"));
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static DoorbellEntry parse(Map<String, Object> value) {
+        DoorbellEntry entry = new DoorbellEntry((Long) value.get("timestamp"),
+                (String) value.get("image"), null);
+        entry.thumbnail = (String) value.get("thumbnail");
+        entry.labels = (List<String>) value.get("labels");
+        entry.annotator = (String) value.get("annotator");
+        return entry;
+    }
+
+    @Benchmark
+    public DoorbellEntryAdapter.Item pagedWindow(Heap heap) {
+        List<DoorbellEntryAdapter.Item> items = new ArrayList<>(PAGE_SIZE);
+        // The newest page arrives as one child event per entry
+        for (int i = ENTRIES - PAGE_SIZE; i < ENTRIES; i++) {
+            DoorbellEntryAdapter.Item item =
+                    new DoorbellEntryAdapter.Item(mKeys[i], parse(snapshot(i)));
+            items.add(DoorbellEntryAdapter.insertionPoint(items, item), item);
+        }
+        heap.retained = items;
+        return items.get(items.size() - 1);
+    }
+
+    @Benchmark
+    public DoorbellEntry wholeNode(Heap heap) {
+        // Every child is held as a snapshot, and parsed when its row is bound
+        List<Map<String, Object>> snapshots = new ArrayList<>();
+        for (int i = 0; i < ENTRIES; i++) {
+            snapshots.add(snapshot(i));
+        }
+        heap.retained = snapshots;
+        // The list shows the newest entry first
+        return parse(snapshots.get(ENTRIES - 1));
+    }
+}
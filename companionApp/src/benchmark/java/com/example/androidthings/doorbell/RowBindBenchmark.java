@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the label text of a history row cached on an earlier bind with formatting
+ * it on every bind, as the list did before rows cached their text. Runs for entries
+ * with labels ranked on the device and for older entries ranked here from their
+ * annotation scores. The relative time is cached the same way but formatted by the
+ * framework, so it is not measured off-device.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowBindBenchmark {
+
+    // As many labels as the device requests from Cloud Vision
+    private static final int ANNOTATIONS = 10;
+
+    @Param({"ranked", "scored"})
+    public String entries;
+
+    private DoorbellEntryAdapter.Item mItem;
+
+    @Setup
+    public void setUp() {
+        Map<String, Float> scores = new HashMap<>();
+        List<String> labels = new ArrayList<>();
+        for (int i = 0; i < ANNOTATIONS; i++) {
+            String label = "label" + i;
+            scores.put(label, 0.95f - 0.05f * i);
+            labels.add(label);
+        }
+        DoorbellEntry entry = new DoorbellEntry(1500000000000L, "image", scores);
+        if ("ranked".equals(entries)) {
+            entry.labels = labels;
+            entry.annotator = "cloud";
+        }
+        mItem = new DoorbellEntryAdapter.Item("key", entry);
+    }
+
+    @Benchmark
+    public String cached() {
+        return mItem.getLabelText();
+    }
+
+    @Benchmark
+    public String uncached() {
+        mItem.labelText = null;
+        return mItem.getLabelText();
+    }
+}
@@ -15,16 +15,25 @@
  */
 package com.example.androidthings.doorbell;
 
+import com.google.firebase.database.IgnoreExtraProperties;
+
+import java.util.List;
 import java.util.Map;
 
 /**
- * Model class for Firebase data entries
+ * Model class for Firebase data entries. Fields the device records for its own
+ * metrics, such as timings and the trigger, are not read.
  */
+@IgnoreExtraProperties
 public class DoorbellEntry {
 
     Long timestamp;
     String image;
+    String thumbnail;
     Map<String, Float> annotations;
+    List<String> labels;
+    String annotator;
+    List<String> sceneTags;
 
     public DoorbellEntry() {
     }
@@ -43,7 +52,35 @@ public class DoorbellEntry {
         return image;
     }
 
+    public String getThumbnail() {
+        return thumbnail;
+    }
+
     public Map<String, Float> getAnnotations() {
         return annotations;
     }
+
+    /**
+     * Return the highest-scoring annotations, best first, or null for entries
+     * recorded before labels were ranked on the device.
+     */
+    public List<String> getLabels() {
+        return labels;
+    }
+
+    /**
+     * Return the name of the annotator that produced the labels, "cloud" or "local"
+     * for on-device fallback labels, or null for entries recorded before it was stored.
+     */
+    public String getAnnotator() {
+        return annotator;
+    }
+
+    /**
+     * Return the device's coarse scene tags, such as lighting and dominant colour, best
+     * first. Only present while the entry has no labels from Cloud Vision.
+     */
+    public List<String> getSceneTags() {
+        return sceneTags;
+    }
 }
\ No newline at end of file
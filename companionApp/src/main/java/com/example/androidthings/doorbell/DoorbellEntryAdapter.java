@@ -16,27 +16,72 @@
 package com.example.androidthings.doorbell;
 
 import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.support.v7.app.AlertDialog;
+import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
-import android.text.TextUtils;
 import android.text.format.DateUtils;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import com.firebase.ui.database.FirebaseRecyclerAdapter;
-import com.firebase.ui.database.FirebaseRecyclerOptions;
+import com.bumptech.glide.ListPreloader;
+import com.bumptech.glide.RequestBuilder;
+import com.bumptech.glide.integration.recyclerview.RecyclerViewPreloader;
+import com.bumptech.glide.load.DecodeFormat;
+import com.bumptech.glide.util.ViewPreloadSizeProvider;
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
 import com.google.firebase.storage.FirebaseStorage;
 import com.google.firebase.storage.StorageReference;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 /**
- * RecyclerView adapter to populate doorbell entries from Firebase.
+ * Shows doorbell entries ordered by timestamp, oldest first, loading them a page at
+ * a time. The newest page is loaded first and kept live; older pages are fetched as
+ * the list is scrolled towards them. At most {@link #MAX_WINDOW} entries are held,
+ * so entries far from the visible ones are dropped and fetched again when needed.
  */
-public class DoorbellEntryAdapter extends FirebaseRecyclerAdapter<DoorbellEntry, DoorbellEntryAdapter.DoorbellEntryViewHolder> {
+public class DoorbellEntryAdapter extends RecyclerView.Adapter<DoorbellEntryAdapter.DoorbellEntryViewHolder>
+        implements ListPreloader.PreloadModelProvider<StorageReference> {
+    private static final String TAG = DoorbellEntryAdapter.class.getSimpleName();
+
+    private static final int PAGE_SIZE = 20;
+    private static final int MAX_WINDOW = 5 * PAGE_SIZE;
+    // Start loading the next page when this close to either end of the window.
+    private static final int PREFETCH_DISTANCE = 5;
+    // Number of labels shown per entry.
+    private static final int MAX_LABELS = 3;
+    private static final String NO_LABELS = "no annotations yet";
+    // Annotator name the device recorded for its on-device fallback labels, before
+    // it stored them apart as scene tags.
+    private static final String LOCAL_ANNOTATOR = "local";
+    private static final String LOCAL_LABELS_NOTE = "(on-device labels)";
+    private static final String SCENE_TAGS_NOTE = "(on-device scene tags)";
+
+    // Number of thumbnails fetched ahead of the scroll position.
+    private static final int PRELOAD_AHEAD = 10;
+
+    // Parts of a row that changed, passed as the payload of a change notification
+    // so only those parts are bound again.
+    static final int CHANGED_TIME = 1;
+    static final int CHANGED_IMAGE = 1 << 1;
+    static final int CHANGED_LABELS = 1 << 2;
+    private static final int CHANGED_ALL = CHANGED_TIME | CHANGED_IMAGE | CHANGED_LABELS;
 
     /**
      * ViewHolder for each doorbell entry
@@ -56,16 +101,529 @@ public class DoorbellEntryAdapter extends FirebaseRecyclerAdapter<DoorbellEntry,
         }
     }
 
+    /**
+     * A loaded entry and its push key.
+     */
+    static class Item {
+        final String key;
+        DoorbellEntry entry;
+
+        // Formatted on first bind, and reset when the fields they show change
+        StorageReference listImage;
+        StorageReference fullImage;
+        String labelText;
+        CharSequence timeText;
+        long timeFormattedAtMs;
+
+        // Number of times the row was bound, fully or in part
+        int binds;
+
+        Item(String key, DoorbellEntry entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+
+        /**
+         * Replace the entry, resetting only what depends on changed fields.
+         *
+         * @return the CHANGED_* flags of the parts of the row to bind again.
+         */
+        int setEntry(DoorbellEntry entry) {
+            DoorbellEntry previous = this.entry;
+            this.entry = entry;
+            int changes = 0;
+            if (!Objects.equals(previous.getTimestamp(), entry.getTimestamp())) {
+                timeText = null;
+                changes |= CHANGED_TIME;
+            }
+            if (!Objects.equals(previous.getImage(), entry.getImage())) {
+                // Only fetched when tapped, so the row itself is unaffected
+                fullImage = null;
+            }
+            if (!Objects.equals(previous.getThumbnail(), entry.getThumbnail())
+                    || (entry.getThumbnail() == null
+                    && !Objects.equals(previous.getImage(), entry.getImage()))) {
+                listImage = null;
+                changes |= CHANGED_IMAGE;
+            }
+            if (!Objects.equals(previous.getLabels(), entry.getLabels())
+                    || !Objects.equals(previous.getAnnotations(), entry.getAnnotations())
+                    || !Objects.equals(previous.getAnnotator(), entry.getAnnotator())
+                    || !Objects.equals(previous.getSceneTags(), entry.getSceneTags())) {
+                labelText = null;
+                changes |= CHANGED_LABELS;
+            }
+            return changes;
+        }
+
+        /**
+         * Return the row's label text, formatting it on first use.
+         */
+        String getLabelText() {
+            if (labelText == null) {
+                labelText = formatLabels(entry);
+            }
+            return labelText;
+        }
+
+        long timestamp() {
+            return entry.getTimestamp();
+        }
+    }
+
     private Context mApplicationContext;
     private FirebaseStorage mFirebaseStorage;
+    private final DatabaseReference mRef;
+    private final Query mNewestPage;
 
-    public DoorbellEntryAdapter(Context context, DatabaseReference ref) {
-        super(new FirebaseRecyclerOptions.Builder<DoorbellEntry>()
-                .setQuery(ref, DoorbellEntry.class)
-                .build());
+    // Loaded entries, oldest first.
+    private final List<Item> mItems = new ArrayList<>();
+    // Whether the window reaches the newest and the oldest entry.
+    private boolean mAtNewest = true;
+    private boolean mAtOldest;
+    private boolean mLoading;
+
+    private int mFullImageLoads;
+    private long mBindCount;
+    private long mPartialBindCount;
+    private long mBindNanos;
+    private long mUnchangedUpdates;
+    private final ImageLoadStats mLoadStats = new ImageLoadStats();
+    private final ViewPreloadSizeProvider<StorageReference> mPreloadSizeProvider =
+            new ViewPreloadSizeProvider<>();
+    private RecyclerViewPreloader<StorageReference> mPreloader;
 
+    private long mStartTimeMs;
+    private boolean mFirstRowBound;
+
+    public DoorbellEntryAdapter(Context context, DatabaseReference ref) {
         mApplicationContext = context.getApplicationContext();
         mFirebaseStorage = FirebaseStorage.getInstance();
+        mRef = ref;
+        mNewestPage = ref.orderByChild("timestamp").limitToLast(PAGE_SIZE);
+    }
+
+    /**
+     * Load the newest page and follow changes to it.
+     */
+    public void startListening() {
+        mStartTimeMs = SystemClock.elapsedRealtime();
+        mFirstRowBound = false;
+        mNewestPage.addChildEventListener(mNewestPageListener);
+    }
+
+    public void stopListening() {
+        mNewestPage.removeEventListener(mNewestPageListener);
+    }
+
+    /**
+     * Keeps the newest page up to date. Entries that fall out of the page as new
+     * ones arrive are kept, since they are still part of the history; entries
+     * deleted from the database are removed.
+     */
+    private final ChildEventListener mNewestPageListener = new ChildEventListener() {
+        @Override
+        public void onChildAdded(DataSnapshot snapshot, String previousChildName) {
+            onEntryUpdated(snapshot);
+        }
+
+        @Override
+        public void onChildChanged(DataSnapshot snapshot, String previousChildName) {
+            onEntryUpdated(snapshot);
+        }
+
+        @Override
+        public void onChildMoved(DataSnapshot snapshot, String previousChildName) {
+            onEntryUpdated(snapshot);
+        }
+
+        @Override
+        public void onChildRemoved(DataSnapshot snapshot) {
+            // Also reported for entries pushed out of the page, so check it is gone
+            final String key = snapshot.getKey();
+            mRef.child(key).addListenerForSingleValueEvent(new ValueEventListener() {
+                @Override
+                public void onDataChange(DataSnapshot current) {
+                    if (!current.exists()) {
+                        onEntryRemoved(key);
+                    }
+                }
+
+                @Override
+                public void onCancelled(DatabaseError error) {
+                    Log.w(TAG, "Unable to check removed entry " + key, error.toException());
+                }
+            });
+        }
+
+        @Override
+        public void onCancelled(DatabaseError error) {
+            Log.w(TAG, "Unable to load newest entries", error.toException());
+        }
+    };
+
+    private void onEntryUpdated(DataSnapshot snapshot) {
+        DoorbellEntry entry = snapshot.getValue(DoorbellEntry.class);
+        // Wait for the timestamp, which orders the entry
+        if (entry == null || entry.getTimestamp() == null) {
+            return;
+        }
+        int index = indexOf(snapshot.getKey());
+        if (index >= 0) {
+            Item item = mItems.remove(index);
+            int changes = item.setEntry(entry);
+            int position = insertionPoint(mItems, item);
+            mItems.add(position, item);
+            if (position != index) {
+                notifyItemMoved(index, position);
+            }
+            if (changes != 0) {
+                notifyItemChanged(position, changes);
+            } else {
+                // e.g. timings or other fields the list does not show
+                mUnchangedUpdates++;
+            }
+        } else if (mAtNewest) {
+            Item item = new Item(snapshot.getKey(), entry);
+            int position = insertionPoint(mItems, item);
+            mItems.add(position, item);
+            notifyItemInserted(position);
+            trimOldest();
+        }
+    }
+
+    private void onEntryRemoved(String key) {
+        int index = indexOf(key);
+        if (index >= 0) {
+            mItems.remove(index);
+            notifyItemRemoved(index);
+        }
+    }
+
+    private int indexOf(String key) {
+        for (int i = 0; i < mItems.size(); i++) {
+            if (mItems.get(i).key.equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the position keeping the window ordered by timestamp, then key.
+     */
+    static int insertionPoint(List<Item> items, Item item) {
+        int position = items.size();
+        while (position > 0) {
+            Item previous = items.get(position - 1);
+            if (previous.timestamp() < item.timestamp() || (previous.timestamp() == item.timestamp()
+                    && previous.key.compareTo(item.key) < 0)) {
+                break;
+            }
+            position--;
+        }
+        return position;
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(RecyclerView recyclerView) {
+        recyclerView.addOnScrollListener(mScrollListener);
+        mPreloader = new RecyclerViewPreloader<>(GlideApp.with(mApplicationContext), this,
+                mPreloadSizeProvider, PRELOAD_AHEAD);
+        recyclerView.addOnScrollListener(mPreloader);
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        recyclerView.removeOnScrollListener(mScrollListener);
+        recyclerView.removeOnScrollListener(mPreloader);
+    }
+
+    /**
+     * Return the image shown in the list for an entry, or null if it has none yet.
+     * References are built from the push key, matching the device's upload paths.
+     */
+    private StorageReference getListImage(int position) {
+        Item item = mItems.get(position);
+        if (item.listImage == null) {
+            if (item.entry.getThumbnail() != null) {
+                item.listImage = mFirebaseStorage.getReference().child(item.key + "-thumb");
+            } else if (item.entry.getImage() != null) {
+                // Entries recorded before thumbnails were uploaded
+                item.listImage = getFullImage(item);
+            }
+        }
+        return item.listImage;
+    }
+
+    /**
+     * Return the full-size image of an entry, or null if it has not been uploaded.
+     */
+    private StorageReference getFullImage(Item item) {
+        if (item.fullImage == null && item.entry.getImage() != null) {
+            item.fullImage = mFirebaseStorage.getReference().child(item.key);
+        }
+        return item.fullImage;
+    }
+
+    /**
+     * Return the entry's labels, one per line, best first. Entries written before
+     * the device stored ranked labels are ranked from their annotation scores, and
+     * labels from the device's fallback annotator are marked as such. Entries without
+     * labels show the device's scene tags, if any.
+     */
+    private static String formatLabels(DoorbellEntry entry) {
+        List<String> labels = entry.getLabels();
+        if (labels == null && entry.getAnnotations() != null) {
+            final Map<String, Float> scores = entry.getAnnotations();
+            labels = new ArrayList<>(scores.keySet());
+            Collections.sort(labels, new Comparator<String>() {
+                @Override
+                public int compare(String a, String b) {
+                    return Float.compare(scores.get(b), scores.get(a));
+                }
+            });
+        }
+        if (labels == null && entry.getSceneTags() != null) {
+            return joinLines(entry.getSceneTags()) + "\n" + SCENE_TAGS_NOTE;
+        }
+        if (labels == null) {
+            return NO_LABELS;
+        }
+        String text = joinLines(labels.subList(0, Math.min(labels.size(), MAX_LABELS)));
+        if (LOCAL_ANNOTATOR.equals(entry.getAnnotator())) {
+            text += "\n" + LOCAL_LABELS_NOTE;
+        }
+        return text;
+    }
+
+    /**
+     * Join lines with '\n'. Unlike TextUtils, this also runs off-device, where the
+     * row caching is benchmarked.
+     */
+    private static String joinLines(List<String> lines) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines.size(); i++) {
+            if (i > 0) {
+                text.append('\n');
+            }
+            text.append(lines.get(i));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Return the relative time of the entry, reformatted at most once a minute.
+     */
+    private CharSequence formatTime(Item item, long now) {
+        if (item.timeText == null || now - item.timeFormattedAtMs >= DateUtils.MINUTE_IN_MILLIS) {
+            item.timeText = DateUtils.getRelativeDateTimeString(mApplicationContext,
+                    item.timestamp(), DateUtils.MINUTE_IN_MILLIS, DateUtils.WEEK_IN_MILLIS, 0);
+            item.timeFormattedAtMs = now;
+        }
+        return item.timeText;
+    }
+
+    /**
+     * Return bind counts and the average bind time so far, and the most times a
+     * loaded entry was bound.
+     */
+    public String getBindStats() {
+        int maxBindsPerEntry = 0;
+        for (Item item : mItems) {
+            maxBindsPerEntry = Math.max(maxBindsPerEntry, item.binds);
+        }
+        return "Binds: " + mBindCount + " (" + mPartialBindCount + " partial) avg "
+                + (mBindCount == 0 ? 0 : mBindNanos / mBindCount / 1000) + "us, "
+                + mUnchangedUpdates + " updates without visible changes, at most "
+                + maxBindsPerEntry + " binds per entry";
+    }
+
+    /**
+     * Thumbnails are decoded as RGB_565, halving their memory.
+     */
+    private GlideRequest<Drawable> listImageRequest(StorageReference imageRef) {
+        return GlideApp.with(mApplicationContext)
+                .load(imageRef)
+                .format(DecodeFormat.PREFER_RGB_565)
+                .placeholder(R.drawable.ic_image);
+    }
+
+    @Override
+    public List<StorageReference> getPreloadItems(int position) {
+        StorageReference imageRef = getListImage(position);
+        return imageRef != null
+                ? Collections.singletonList(imageRef)
+                : Collections.<StorageReference>emptyList();
+    }
+
+    @Override
+    public RequestBuilder<?> getPreloadRequestBuilder(StorageReference imageRef) {
+        return listImageRequest(imageRef);
+    }
+
+    /**
+     * Return cache hit and load time counts for images shown so far.
+     */
+    public ImageLoadStats getLoadStats() {
+        return mLoadStats;
+    }
+
+    /**
+     * Loads another page when the visible entries approach either end of the window.
+     */
+    private final RecyclerView.OnScrollListener mScrollListener =
+            new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            LinearLayoutManager layoutManager =
+                    (LinearLayoutManager) recyclerView.getLayoutManager();
+            int first = layoutManager.findFirstVisibleItemPosition();
+            int last = layoutManager.findLastVisibleItemPosition();
+            if (first == RecyclerView.NO_POSITION) {
+                return;
+            }
+            if (first <= PREFETCH_DISTANCE) {
+                loadOlder();
+            } else if (last >= mItems.size() - 1 - PREFETCH_DISTANCE) {
+                loadNewer();
+            }
+        }
+    };
+
+    /**
+     * Fetch the page of entries before the oldest loaded one.
+     */
+    private void loadOlder() {
+        if (mLoading || mAtOldest || mItems.isEmpty()) {
+            return;
+        }
+        mLoading = true;
+        final Item oldest = mItems.get(0);
+        mRef.orderByChild("timestamp")
+                .endAt(oldest.timestamp(), oldest.key)
+                .limitToLast(PAGE_SIZE + 1)
+                .addListenerForSingleValueEvent(new PageListener() {
+                    @Override
+                    void onPage(List<Item> page) {
+                        // The page ends with the entry it was anchored on
+                        if (page.get(page.size() - 1).key.equals(oldest.key)) {
+                            page.remove(page.size() - 1);
+                        }
+                        mAtOldest = page.size() < PAGE_SIZE;
+                        if (mItems.isEmpty() || mItems.get(0) != oldest) {
+                            return;
+                        }
+                        mItems.addAll(0, page);
+                        notifyItemRangeInserted(0, page.size());
+                        trimNewest();
+                    }
+                });
+    }
+
+    /**
+     * Fetch the page of entries after the newest loaded one, once the newest entries
+     * have been dropped from the window.
+     */
+    private void loadNewer() {
+        if (mLoading || mAtNewest || mItems.isEmpty()) {
+            return;
+        }
+        mLoading = true;
+        final Item newest = mItems.get(mItems.size() - 1);
+        mRef.orderByChild("timestamp")
+                .startAt(newest.timestamp(), newest.key)
+                .limitToFirst(PAGE_SIZE + 1)
+                .addListenerForSingleValueEvent(new PageListener() {
+                    @Override
+                    void onPage(List<Item> page) {
+                        // The page starts with the entry it was anchored on
+                        if (page.get(0).key.equals(newest.key)) {
+                            page.remove(0);
+                        }
+                        mAtNewest = page.size() < PAGE_SIZE;
+                        if (mItems.isEmpty() || mItems.get(mItems.size() - 1) != newest) {
+                            return;
+                        }
+                        int start = mItems.size();
+                        mItems.addAll(page);
+                        notifyItemRangeInserted(start, page.size());
+                        trimOldest();
+                    }
+                });
+    }
+
+    /**
+     * Collects a page of entries in order and hands it over on success.
+     */
+    private abstract class PageListener implements ValueEventListener {
+        @Override
+        public void onDataChange(DataSnapshot snapshot) {
+            mLoading = false;
+            List<Item> page = new ArrayList<>((int) snapshot.getChildrenCount());
+            for (DataSnapshot child : snapshot.getChildren()) {
+                DoorbellEntry entry = child.getValue(DoorbellEntry.class);
+                if (entry != null && entry.getTimestamp() != null) {
+                    page.add(new Item(child.getKey(), entry));
+                }
+            }
+            if (!page.isEmpty()) {
+                onPage(page);
+            }
+        }
+
+        @Override
+        public void onCancelled(DatabaseError error) {
+            mLoading = false;
+            Log.w(TAG, "Unable to load entries", error.toException());
+        }
+
+        abstract void onPage(List<Item> page);
+    }
+
+    private void trimOldest() {
+        int excess = mItems.size() - MAX_WINDOW;
+        if (excess > 0) {
+            mItems.subList(0, excess).clear();
+            notifyItemRangeRemoved(0, excess);
+            mAtOldest = false;
+        }
+    }
+
+    private void trimNewest() {
+        int excess = mItems.size() - MAX_WINDOW;
+        if (excess > 0) {
+            mItems.subList(MAX_WINDOW, mItems.size()).clear();
+            notifyItemRangeRemoved(MAX_WINDOW, excess);
+            mAtNewest = false;
+        }
+    }
+
+    /**
+     * Show the full-size image of an entry in a dialog.
+     */
+    private void showFullImage(Context context, StorageReference image) {
+        mFullImageLoads++;
+        Log.d(TAG, "Loading full image (" + mFullImageLoads + " so far)");
+        ImageView view = new ImageView(context);
+        view.setAdjustViewBounds(true);
+        GlideApp.with(context)
+                .load(image)
+                .listener(mLoadStats.track())
+                .placeholder(R.drawable.ic_image)
+                .into(view);
+        new AlertDialog.Builder(context)
+                .setView(view)
+                .show();
+    }
+
+    @Override
+    public int getItemCount() {
+        return mItems.size();
+    }
+
+    public DoorbellEntry getItem(int position) {
+        return mItems.get(position).entry;
     }
 
     @Override
@@ -73,34 +631,86 @@ public class DoorbellEntryAdapter extends FirebaseRecyclerAdapter<DoorbellEntry,
         View entryView = LayoutInflater.from(parent.getContext())
                 .inflate(R.layout.doorbell_entry, parent, false);
 
-        return new DoorbellEntryViewHolder(entryView);
+        final DoorbellEntryViewHolder holder = new DoorbellEntryViewHolder(entryView);
+        mPreloadSizeProvider.setView(holder.image);
+        // Fetch the full image only when asked for
+        holder.image.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                int position = holder.getAdapterPosition();
+                if (position == RecyclerView.NO_POSITION) {
+                    return;
+                }
+                StorageReference fullImage = getFullImage(mItems.get(position));
+                if (fullImage != null) {
+                    showFullImage(view.getContext(), fullImage);
+                }
+            }
+        });
+        return holder;
     }
 
     @Override
-    protected void onBindViewHolder(DoorbellEntryViewHolder holder, int position, DoorbellEntry model) {
-        // Display the timestamp
-        CharSequence prettyTime = DateUtils.getRelativeDateTimeString(mApplicationContext,
-                model.getTimestamp(), DateUtils.SECOND_IN_MILLIS, DateUtils.WEEK_IN_MILLIS, 0);
-        holder.time.setText(prettyTime);
+    public void onBindViewHolder(DoorbellEntryViewHolder holder, int position,
+                                 List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        // Payloads of change notifications received since the last bind
+        int changes = 0;
+        for (Object payload : payloads) {
+            changes |= (Integer) payload;
+        }
+        mPartialBindCount++;
+        bind(holder, position, changes);
+    }
+
+    @Override
+    public void onBindViewHolder(DoorbellEntryViewHolder holder, int position) {
+        if (!mFirstRowBound) {
+            mFirstRowBound = true;
+            Runtime runtime = Runtime.getRuntime();
+            Log.i(TAG, "First row after " + (SystemClock.elapsedRealtime() - mStartTimeMs)
+                    + "ms, " + mItems.size() + " entries loaded, heap used "
+                    + (runtime.totalMemory() - runtime.freeMemory()) / 1024 + "KB");
+        }
+
+        bind(holder, position, CHANGED_ALL);
+    }
+
+    /**
+     * Bind the given parts of a row.
+     */
+    private void bind(DoorbellEntryViewHolder holder, int position, int parts) {
+        long start = System.nanoTime();
+        Item item = mItems.get(position);
+        item.binds++;
 
-        // Display the image
-        if (model.getImage() != null) {
-            StorageReference imageRef = mFirebaseStorage.getReferenceFromUrl(model.getImage());
+        // Display the timestamp
+        if ((parts & CHANGED_TIME) != 0) {
+            holder.time.setText(formatTime(item, System.currentTimeMillis()));
+        }
 
-            GlideApp.with(mApplicationContext)
-                    .load(imageRef)
-                    .placeholder(R.drawable.ic_image)
-                    .into(holder.image);
+        // Display the thumbnail, falling back to the image for older entries
+        if ((parts & CHANGED_IMAGE) != 0) {
+            StorageReference imageRef = getListImage(position);
+            if (imageRef != null) {
+                listImageRequest(imageRef)
+                        .listener(mLoadStats.track())
+                        .into(holder.image);
+            } else {
+                GlideApp.with(mApplicationContext).clear(holder.image);
+                holder.image.setImageResource(R.drawable.ic_image);
+            }
         }
 
         // Display the metadata
-        if (model.getAnnotations() != null) {
-            ArrayList<String> keywords = new ArrayList<>(model.getAnnotations().keySet());
-
-            int limit = Math.min(keywords.size(), 3);
-            holder.metadata.setText(TextUtils.join("\n", keywords.subList(0, limit)));
-        } else {
-            holder.metadata.setText("no annotations yet");
+        if ((parts & CHANGED_LABELS) != 0) {
+            holder.metadata.setText(item.getLabelText());
         }
+
+        mBindCount++;
+        mBindNanos += System.nanoTime() - start;
     }
 }
@@ -3,8 +3,13 @@ package com.example.androidthings.doorbell;
 import android.content.Context;
 
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.GlideBuilder;
 import com.bumptech.glide.Registry;
 import com.bumptech.glide.annotation.GlideModule;
+import com.bumptech.glide.load.engine.bitmap_recycle.LruBitmapPool;
+import com.bumptech.glide.load.engine.cache.InternalCacheDiskCacheFactory;
+import com.bumptech.glide.load.engine.cache.LruResourceCache;
+import com.bumptech.glide.load.engine.cache.MemorySizeCalculator;
 import com.bumptech.glide.module.AppGlideModule;
 import com.firebase.ui.storage.images.FirebaseImageLoader;
 import com.google.firebase.storage.StorageReference;
@@ -14,11 +19,31 @@ import java.io.InputStream;
 /**
  * AppGlideModule required by FirebaseUI to render images from
  * Firebase storage directly into an ImageView.
+ *
+ * Also sizes Glide's caches for a list of thumbnails. Images are loaded by
+ * {@link StorageReference}, whose cache key is its path. Paths are derived from
+ * the event's push key, so a change of download token does not miss the cache.
  */
-
 @GlideModule
 public class FirebaseGlideModule extends AppGlideModule {
 
+    // Memory cache and bitmap pool budgets, in screens' worth of ARGB_8888 pixels.
+    private static final float MEMORY_CACHE_SCREENS = 3;
+    private static final float BITMAP_POOL_SCREENS = 3;
+    // Decoded thumbnails and fetched images kept on disk.
+    private static final long DISK_CACHE_BYTES = 100 * 1024 * 1024;
+
+    @Override
+    public void applyOptions(Context context, GlideBuilder builder) {
+        MemorySizeCalculator calculator = new MemorySizeCalculator.Builder(context)
+                .setMemoryCacheScreens(MEMORY_CACHE_SCREENS)
+                .setBitmapPoolScreens(BITMAP_POOL_SCREENS)
+                .build();
+        builder.setMemoryCache(new LruResourceCache(calculator.getMemoryCacheSize()));
+        builder.setBitmapPool(new LruBitmapPool(calculator.getBitmapPoolSize()));
+        builder.setDiskCache(new InternalCacheDiskCacheFactory(context, DISK_CACHE_BYTES));
+    }
+
     @Override
     public void registerComponents(Context context, Glide glide, Registry registry) {
         // Register FirebaseImageLoader to handle StorageReference
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import com.bumptech.glide.load.DataSource;
+import com.bumptech.glide.load.engine.GlideException;
+import com.bumptech.glide.request.RequestListener;
+import com.bumptech.glide.request.target.Target;
+
+/**
+ * Counts where Glide found each image and how long it took to show, per source.
+ * Loads from the disk cache are dominated by decoding.
+ */
+public class ImageLoadStats {
+
+    private static final DataSource[] SOURCES = DataSource.values();
+
+    private final long[] mCounts = new long[SOURCES.length];
+    private final long[] mTotalMs = new long[SOURCES.length];
+    private long mFailures;
+
+    /**
+     * Return a listener for one request, started now.
+     */
+    public RequestListener<Drawable> track() {
+        final long start = SystemClock.elapsedRealtime();
+        return new RequestListener<Drawable>() {
+            @Override
+            public boolean onLoadFailed(@Nullable GlideException e, Object model,
+                                        Target<Drawable> target, boolean isFirstResource) {
+                synchronized (ImageLoadStats.this) {
+                    mFailures++;
+                }
+                return false;
+            }
+
+            @Override
+            public boolean onResourceReady(Drawable resource, Object model,
+                                           Target<Drawable> target, DataSource dataSource,
+                                           boolean isFirstResource) {
+                long elapsed = SystemClock.elapsedRealtime() - start;
+                synchronized (ImageLoadStats.this) {
+                    mCounts[dataSource.ordinal()]++;
+                    mTotalMs[dataSource.ordinal()] += elapsed;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Return the cache hit rate and average load time for each source.
+     */
+    @Override
+    public synchronized String toString() {
+        long total = 0;
+        long remote = 0;
+        StringBuilder sources = new StringBuilder();
+        for (int i = 0; i < SOURCES.length; i++) {
+            total += mCounts[i];
+            if (SOURCES[i] == DataSource.REMOTE) {
+                remote = mCounts[i];
+            }
+            if (mCounts[i] > 0) {
+                sources.append(' ').append(SOURCES[i]).append('=').append(mCounts[i])
+                        .append("/avg ").append(mTotalMs[i] / mCounts[i]).append("ms");
+            }
+        }
+        long hitRate = total == 0 ? 0 : 100 * (total - remote) / total;
+        return "ImageLoadStats: loads=" + total + " hitRate=" + hitRate + "%"
+                + " failures=" + mFailures + sources;
+    }
+}
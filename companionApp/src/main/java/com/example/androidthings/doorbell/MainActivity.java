@@ -16,6 +16,7 @@
 package com.example.androidthings.doorbell;
 
 import android.os.Bundle;
+import android.util.Log;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
@@ -46,6 +47,18 @@ public class MainActivity extends AppCompatActivity {
         // Initialize RecyclerView adapter
         mAdapter = new DoorbellEntryAdapter(this, ref);
         mRecyclerView.setAdapter(mAdapter);
+
+        // Make sure new events are visible. Changes to loaded entries and pages of
+        // older entries leave the scroll position alone.
+        mAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                int newest = mAdapter.getItemCount() - 1;
+                if (itemCount == 1 && positionStart == newest) {
+                    mRecyclerView.smoothScrollToPosition(newest);
+                }
+            }
+        });
     }
 
     @Override
@@ -54,14 +67,6 @@ public class MainActivity extends AppCompatActivity {
 
         // Initialize Firebase listeners in adapter
         mAdapter.startListening();
-
-        // Make sure new events are visible
-        mAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
-            @Override
-            public void onItemRangeChanged(int positionStart, int itemCount) {
-                mRecyclerView.smoothScrollToPosition(mAdapter.getItemCount());
-            }
-        });
     }
 
     @Override
@@ -70,6 +75,8 @@ public class MainActivity extends AppCompatActivity {
 
         // Tear down Firebase listeners in adapter
         mAdapter.stopListening();
+        Log.i(TAG, mAdapter.getLoadStats().toString());
+        Log.i(TAG, mAdapter.getBindStats());
     }
 
 }
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.doorbell;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class DoorbellEntryAdapterTest {
+
+    private static DoorbellEntryAdapter.Item item(String key, long timestamp) {
+        return new DoorbellEntryAdapter.Item(key, new DoorbellEntry(timestamp, key, null));
+    }
+
+    private static DoorbellEntry copy(DoorbellEntry entry) {
+        DoorbellEntry copy = new DoorbellEntry(entry.timestamp, entry.image, entry.annotations);
+        copy.thumbnail = entry.thumbnail;
+        copy.labels = entry.labels;
+        copy.annotator = entry.annotator;
+        copy.sceneTags = entry.sceneTags;
+        return copy;
+    }
+
+    /**
+     * Return an item whose row text has been formatted, as after its first bind.
+     */
+    private static DoorbellEntryAdapter.Item boundItem(DoorbellEntry entry) {
+        DoorbellEntryAdapter.Item item = new DoorbellEntryAdapter.Item("k", entry);
+        item.timeText = "1 minute ago";
+        item.labelText = "Door";
+        return item;
+    }
+
+    private static void insert(List<DoorbellEntryAdapter.Item> items,
+                               DoorbellEntryAdapter.Item item) {
+        items.add(DoorbellEntryAdapter.insertionPoint(items, item), item);
+    }
+
+    private static String keys(List<DoorbellEntryAdapter.Item> items) {
+        StringBuilder keys = new StringBuilder();
+        for (DoorbellEntryAdapter.Item item : items) {
+            keys.append(item.key);
+        }
+        return keys.toString();
+    }
+
+    @Test
+    public void newerEntryIsAppended() {
+        List<DoorbellEntryAdapter.Item> items = new ArrayList<>();
+        insert(items, item("a", 100));
+        insert(items, item("b", 200));
+
+        assertEquals(2, DoorbellEntryAdapter.insertionPoint(items, item("c", 300)));
+    }
+
+    @Test
+    public void entriesArrivingOutOfOrderAreOrderedByTimestamp() {
+        List<DoorbellEntryAdapter.Item> items = new ArrayList<>();
+        insert(items, item("c", 300));
+        insert(items, item("a", 100));
+        insert(items, item("b", 200));
+
+        assertEquals("abc", keys(items));
+    }
+
+    @Test
+    public void equalTimestampsAreOrderedByKey() {
+        List<DoorbellEntryAdapter.Item> items = new ArrayList<>();
+        insert(items, item("b", 100));
+        insert(items, item("c", 100));
+        insert(items, item("a", 100));
+
+        assertEquals("abc", keys(items));
+    }
+
+    /**
+     * Fills a full window from a shuffled page stream, as when the newest page and
+     * scrolled pages arrive interleaved.
+     */
+    @Test
+    public void shuffledWindowIsOrdered() {
+        int entries = 100;
+        List<DoorbellEntryAdapter.Item> arrivals = new ArrayList<>();
+        for (int i = 0; i < entries; i++) {
+            arrivals.add(item(String.format("k%03d", i), 1000L * (i / 2)));
+        }
+        Collections.shuffle(arrivals, new Random(3));
+
+        List<DoorbellEntryAdapter.Item> items = new ArrayList<>();
+        for (DoorbellEntryAdapter.Item item : arrivals) {
+            insert(items, item);
+        }
+
+        for (int i = 0; i < entries; i++) {
+            assertEquals(String.format("k%03d", i), items.get(i).key);
+        }
+    }
+
+    @Test
+    public void updateWithoutVisibleChangesKeepsRowText() {
+        DoorbellEntry entry = new DoorbellEntry(100L, "k", null);
+        entry.labels = Arrays.asList("Door");
+        DoorbellEntryAdapter.Item item = boundItem(entry);
+
+        // e.g. the device adding its timings to the event
+        assertEquals(0, item.setEntry(copy(entry)));
+
+        assertNotNull(item.timeText);
+        assertNotNull(item.labelText);
+    }
+
+    @Test
+    public void changedLabelsResetOnlyLabelText() {
+        DoorbellEntry entry = new DoorbellEntry(100L, "k", null);
+        DoorbellEntryAdapter.Item item = boundItem(entry);
+        DoorbellEntry labelled = copy(entry);
+        labelled.labels = Arrays.asList("Person", "Door");
+
+        assertEquals(DoorbellEntryAdapter.CHANGED_LABELS, item.setEntry(labelled));
+
+        assertNull(item.labelText);
+        assertNotNull(item.timeText);
+    }
+
+    @Test
+    public void changedAnnotatorResetsLabelText() {
+        DoorbellEntry entry = new DoorbellEntry(100L, "k", null);
+        entry.labels = Arrays.asList("Door");
+        entry.annotator = "local";
+        DoorbellEntryAdapter.Item item = boundItem(entry);
+        DoorbellEntry reannotated = copy(entry);
+        reannotated.annotator = "cloud";
+
+        assertEquals(DoorbellEntryAdapter.CHANGED_LABELS, item.setEntry(reannotated));
+        assertNull(item.labelText);
+    }
+
+    @Test
+    public void labelsReplacingSceneTagsResetLabelText() {
+        DoorbellEntry entry = new DoorbellEntry(100L, "k", null);
+        entry.sceneTags = Arrays.asList("Daylight", "Plain scene");
+        DoorbellEntryAdapter.Item item = boundItem(entry);
+        DoorbellEntry labelled = copy(entry);
+        labelled.sceneTags = null;
+        labelled.labels = Arrays.asList("Person");
+
+        assertEquals(DoorbellEntryAdapter.CHANGED_LABELS, item.setEntry(labelled));
+        assertNull(item.labelText);
+    }
+
+    @Test
+    public void changedTimestampResetsTimeText() {
+        DoorbellEntryAdapter.Item item = boundItem(new DoorbellEntry(100L, "k", null));
+
+        assertEquals(DoorbellEntryAdapter.CHANGED_TIME,
+                item.setEntry(new DoorbellEntry(200L, "k", null)));
+        assertNull(item.timeText);
+        assertNotNull(item.labelText);
+    }
+
+    @Test
+    public void imageChangesRebindRowOnlyWithoutThumbnail() {
+        DoorbellEntryAdapter.Item item = boundItem(new DoorbellEntry(100L, null, null));
+
+        // The list shows the event image until a thumbnail is uploaded
+        DoorbellEntry uploaded = new DoorbellEntry(100L, "k", null);
+        assertEquals(DoorbellEntryAdapter.CHANGED_IMAGE, item.setEntry(uploaded));
+
+        DoorbellEntry withThumbnail = copy(uploaded);
+        withThumbnail.thumbnail = "k-thumb";
+        assertEquals(DoorbellEntryAdapter.CHANGED_IMAGE, item.setEntry(withThumbnail));
+
+        DoorbellEntry reuploaded = copy(withThumbnail);
+        reuploaded.image = "k2";
+        assertEquals(0, item.setEntry(reuploaded));
+    }
+}